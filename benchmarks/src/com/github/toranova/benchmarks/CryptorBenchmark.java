@@ -0,0 +1,61 @@
+package com.github.toranova.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import com.github.toranova.AWSKMSHashcryptor;
+import com.github.toranova.KeyEpoch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * doEncrypt / doDecryptUTF8 per cipher engine and payload size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CryptorBenchmark {
+
+    @Param({"16", "256", "4096"})
+    int payloadSize;
+
+    @Param({"bc-cbc", "jca-cbc", "bc-gcm-siv"})
+    String engine;
+
+    private AWSKMSHashcryptor cryptor;
+    private KeyEpoch epoch;
+    private byte[] payload;
+    private String ciphertext;
+
+    @Setup
+    public void setup() throws Exception {
+        cryptor = Offline.cryptor();
+        cryptor.setCipherEngine(engine);
+        epoch = cryptor.getEpoch();
+        payload = Offline.text(payloadSize).getBytes(StandardCharsets.UTF_8);
+        ciphertext = cryptor.doEncrypt(epoch, payload);
+    }
+
+    @Benchmark
+    public String encrypt() throws Exception {
+        return cryptor.doEncrypt(epoch, payload);
+    }
+
+    @Benchmark
+    public String decrypt() throws Exception {
+        return cryptor.doDecryptUTF8(epoch, ciphertext);
+    }
+}
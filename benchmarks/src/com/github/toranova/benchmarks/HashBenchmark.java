@@ -0,0 +1,58 @@
+package com.github.toranova.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import com.github.toranova.AWSKMSHashcryptor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * doHash per payload size, and the hex encoding of a digest on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HashBenchmark {
+
+    @Param({"16", "256", "4096"})
+    int payloadSize;
+
+    @Param({"SHA-256", "SHA-512"})
+    String algo;
+
+    private AWSKMSHashcryptor cryptor;
+    private byte[] payload;
+    private byte[] digest;
+
+    @Setup
+    public void setup() throws Exception {
+        cryptor = Offline.cryptor();
+        cryptor.initHashDigest(algo, "salt123");
+        payload = Offline.text(payloadSize).getBytes(StandardCharsets.UTF_8);
+        digest = AWSKMSHashcryptor.hexToBytes(cryptor.doHash(payload));
+    }
+
+    @Benchmark
+    public String hash() throws Exception {
+        return cryptor.doHash(payload);
+    }
+
+    @Benchmark
+    public String bytesToHex() {
+        return AWSKMSHashcryptor.bytesToHex(digest);
+    }
+}
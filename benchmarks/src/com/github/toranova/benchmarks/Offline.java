@@ -0,0 +1,26 @@
+package com.github.toranova.benchmarks;
+
+import com.github.toranova.AWSKMSHashcryptor;
+import com.github.toranova.LocalKeyProvider;
+
+/**
+ * Cryptors that never talk to kms, so the suite runs without credentials.
+ */
+final class Offline {
+
+    private Offline() {
+    }
+
+    static AWSKMSHashcryptor cryptor() throws Exception {
+        // rotates every million encryptions like the kms default, locally
+        return new AWSKMSHashcryptor(new LocalKeyProvider(), "local", "SHA-256", "salt123", 1000000);
+    }
+
+    static String text(int len) {
+        StringBuilder sb = new StringBuilder(len);
+        for (int i = 0; i < len; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.toranova.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.toranova.HashCryptField;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * HashCryptField.process on a record with fieldCount selected fields of
+ * valueSize characters each, next to 8 untouched fields. Both modes start
+ * from the raw json bytes, the tree mode pays for parsing like a route would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ProcessorBenchmark {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Param({"1", "4", "16"})
+    int fieldCount;
+
+    @Param({"16", "1024"})
+    int valueSize;
+
+    @Param({"tree", "streaming"})
+    String mode;
+
+    private DefaultCamelContext camelContext;
+    private HashCryptField processor;
+    private byte[] record;
+
+    @Setup
+    public void setup() throws Exception {
+        camelContext = new DefaultCamelContext();
+
+        StringBuilder fields = new StringBuilder();
+        StringBuilder json = new StringBuilder("{");
+        String value = Offline.text(valueSize);
+        for (int i = 0; i < fieldCount; i++) {
+            fields.append(i == 0 ? "" : ",").append("f").append(i);
+            json.append("\"f").append(i).append("\":\"").append(value).append("\",");
+        }
+        for (int i = 0; i < 8; i++) {
+            json.append("\"keep").append(i).append("\":").append(i).append(",");
+        }
+        json.append("\"nested\":{\"a\":[1,2,3]}}");
+        record = json.toString().getBytes(StandardCharsets.UTF_8);
+
+        processor = new HashCryptField(fields.toString(), Offline.cryptor());
+        processor.setStreaming(mode.equals("streaming"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        processor.stop();
+    }
+
+    @Benchmark
+    public Object process() throws Exception {
+        Exchange ex = new DefaultExchange(camelContext);
+        if (mode.equals("streaming")) {
+            ex.getMessage().setBody(record);
+        } else {
+            ex.getMessage().setBody(MAPPER.readTree(record));
+        }
+        processor.process(ex);
+        return ex.getMessage().getBody();
+    }
+}
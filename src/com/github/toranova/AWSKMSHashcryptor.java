@@ -3,19 +3,25 @@ package com.github.toranova;
 import java.util.Base64;
 import java.util.Arrays;
 import java.security.SecureRandom;
+import java.io.Closeable;
 import java.io.UnsupportedEncodingException;
-import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.BufferOverflowException;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
-import software.amazon.awssdk.http.apache.ApacheHttpClient;
-import software.amazon.awssdk.http.SdkHttpClient;
-import software.amazon.awssdk.http.apache.ProxyConfiguration;
-
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.kms.KmsClient;
-import software.amazon.awssdk.services.kms.model.GenerateDataKeyRequest;
-import software.amazon.awssdk.services.kms.model.GenerateDataKeyResponse;
-import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
-import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -34,28 +40,71 @@ import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
 import org.bouncycastle.crypto.paddings.PKCS7Padding;
 import org.bouncycastle.crypto.params.ParametersWithIV;
 
-public class AWSKMSHashcryptor {
+public class AWSKMSHashcryptor implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AWSKMSHashcryptor.class);
+
+    // minimum delay between two failed background fetches
+    private static final long PREFETCH_RETRY_NANOS = 1000000000L;
+    // lazy startup retries, doubled after every failure
+    private static final long WARMUP_MIN_BACKOFF_MS = 250;
+    private static final long WARMUP_MAX_BACKOFF_MS = 30000;
 
     private String mHashAlgo;
-    private String mProxy;
-    private String mAwsAccessKey;
-    private String mAwsSecretKey;
+    private DataKeyProvider mKeys;
+    // closed with the cryptor only if created here
+    private boolean mOwnsKeys;
     private byte[] mHashSalt;
+    // digest already fed with the salt, cloned for every hash
+    private ThreadLocal<MessageDigest> mDigestProto;
+    // optional, null when disabled
+    private volatile HashCache mHashCache;
     private String mKeyId;
-    private KeyParameter mKeyParam;
-    private String mKeyCtB64;
-    private static int mNonceLen = 16;
-    private int mRotationCount = 0;
-    private int mRotationPeriod = 1000000;
+    private final AtomicReference<KeyEpoch> mEpoch = new AtomicReference<>();
+    // bc-cbc unless configured, see CipherEngines
+    private volatile CipherEngine mEngine = new BouncyCastleCbcEngine();
+    // the clock is only read when this is not NOOP
+    private volatile HashCryptMetrics mMetrics = HashCryptMetrics.NOOP;
+
+    // per-thread scratch space for the buffer apis, grown on demand
+    private static final ThreadLocal<byte[]> SCRATCH_IN = ThreadLocal.withInitial(() -> new byte[256]);
+    private static final ThreadLocal<byte[]> SCRATCH_OUT = ThreadLocal.withInitial(() -> new byte[256]);
+    private static final ThreadLocal<byte[]> SCRATCH_DIGEST = ThreadLocal.withInitial(() -> new byte[64]);
+
+    private volatile int mRotationPeriod = 1000000;
 
+    // only one thread talks to kms for an inline rotation
+    private final AtomicBoolean mRotating = new AtomicBoolean(false);
+
+    // background rotation, disabled when the low water mark is 0
+    private volatile double mLowWaterMark = 0;
+    private final AtomicReference<KeyEpoch> mNextEpoch = new AtomicReference<>();
+    private final AtomicBoolean mFetching = new AtomicBoolean(false);
+    private volatile long mRetryAt = 0;
+    private ExecutorService mRotator;
+
+    // lazy startup, the latch opens with the first key
+    private final CountDownLatch mReady = new CountDownLatch(1);
+    private final CompletableFuture<Void> mReadyFuture = new CompletableFuture<>();
+    private final AtomicBoolean mWarming = new AtomicBoolean(false);
+    private volatile Exception mWarmUpError;
+    private volatile long mReadyTimeoutMs = 30000;
+
+    // deterministic mode, unwrapped on first use
+    private volatile String mDetContext;
+    private volatile DeterministicCipher mDet;
+    // not the monitor, the unwrap calls kms and must not hold up the rest
+    private final Object mDetLock = new Object();
 
     public AWSKMSHashcryptor(
             byte[] hardCodedKey
     ) throws NoSuchAlgorithmException, UnsupportedEncodingException {
         // FOR DEBUGGING ONLY, DO NOT USE!
-        mKeyParam = new KeyParameter(hardCodedKey);
-        mKeyCtB64 = Base64.getEncoder().encodeToString(hardCodedKey);
         mKeyId = "00000000-0000-0000-0000-000000000000";
+        // rotations hand out the same key again
+        mKeys = new StaticKeyProvider(hardCodedKey);
+        mOwnsKeys = true;
+        initKeys();
         mRotationPeriod = 5;
         initHashDigest("SHA-256", "salt123");
     }
@@ -67,14 +116,17 @@ public class AWSKMSHashcryptor {
             int rotationPeriod
     ) throws NoSuchAlgorithmException, UnsupportedEncodingException {
         // Initialize the KMS client
-        mRotationPeriod = rotationPeriod;
-        mKeyId = kmsKeyId;
-        mAwsSecretKey = null;
-        mAwsAccessKey = null;
-        mProxy = null;
+        this(new AWSKMSKeyProvider(new KmsConnection(null, null, null)), true, kmsKeyId, hashAlgo, hashSalt, rotationPeriod, false);
+    }
 
-        initKeys();
-        initHashDigest(hashAlgo, hashSalt);
+    public AWSKMSHashcryptor(
+            String kmsKeyId,
+            String hashAlgo,
+            String hashSalt,
+            int rotationPeriod,
+            boolean lazy
+    ) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        this(new AWSKMSKeyProvider(new KmsConnection(null, null, null)), true, kmsKeyId, hashAlgo, hashSalt, rotationPeriod, lazy);
     }
 
     public AWSKMSHashcryptor(
@@ -85,14 +137,7 @@ public class AWSKMSHashcryptor {
             String hashSalt,
             int rotationPeriod
     ) throws NoSuchAlgorithmException, UnsupportedEncodingException {
-        mRotationPeriod = rotationPeriod;
-        mKeyId = kmsKeyId;
-        mAwsAccessKey = awsKeyId;
-        mAwsSecretKey = awsKeySecret;
-        mProxy = null;
-
-        initKeys();
-        initHashDigest(hashAlgo, hashSalt);
+        this(new AWSKMSKeyProvider(new KmsConnection(awsKeyId, awsKeySecret, null)), true, kmsKeyId, hashAlgo, hashSalt, rotationPeriod, false);
     }
 
     public AWSKMSHashcryptor(
@@ -103,73 +148,400 @@ public class AWSKMSHashcryptor {
             String hashSalt,
             int rotationPeriod,
             String proxy
+    ) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        this(new AWSKMSKeyProvider(new KmsConnection(awsKeyId, awsKeySecret, proxy)), true, kmsKeyId, hashAlgo, hashSalt, rotationPeriod, false);
+    }
+
+    public AWSKMSHashcryptor(
+            String awsKeyId,
+            String awsKeySecret,
+            String kmsKeyId,
+            String hashAlgo,
+            String hashSalt,
+            int rotationPeriod,
+            String proxy,
+            boolean lazy
+    ) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        this(new AWSKMSKeyProvider(new KmsConnection(awsKeyId, awsKeySecret, proxy)), true, kmsKeyId, hashAlgo, hashSalt, rotationPeriod, lazy);
+    }
+
+    /**
+     * Takes its data keys from provider, e.g. a {@link LocalKeyProvider}
+     * to run without aws. The first key is fetched here.
+     */
+    public AWSKMSHashcryptor(
+            DataKeyProvider provider,
+            String keyId,
+            String hashAlgo,
+            String hashSalt,
+            int rotationPeriod
+    ) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        this(provider, keyId, hashAlgo, hashSalt, rotationPeriod, false);
+    }
+
+    /**
+     * With lazy set, returns without a key and fetches the first one on a
+     * background thread, retrying with exponential backoff until it
+     * succeeds. See {@link #isReady()}; until then acquireEpoch waits.
+     * The provider stays open after {@link #close()}.
+     */
+    public AWSKMSHashcryptor(
+            DataKeyProvider provider,
+            String keyId,
+            String hashAlgo,
+            String hashSalt,
+            int rotationPeriod,
+            boolean lazy
+    ) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        this(provider, false, keyId, hashAlgo, hashSalt, rotationPeriod, lazy);
+    }
+
+    private AWSKMSHashcryptor(
+            DataKeyProvider provider,
+            boolean ownsProvider,
+            String keyId,
+            String hashAlgo,
+            String hashSalt,
+            int rotationPeriod,
+            boolean lazy
     ) throws NoSuchAlgorithmException, UnsupportedEncodingException {
         mRotationPeriod = rotationPeriod;
-        mKeyId = kmsKeyId;
-        mAwsAccessKey = awsKeyId;
-        mAwsSecretKey = awsKeySecret;
-        mProxy = proxy;
+        mKeyId = keyId;
+        mKeys = provider;
+        mOwnsKeys = ownsProvider;
 
-        initKeys();
         initHashDigest(hashAlgo, hashSalt);
+        if (lazy) {
+            startWarmUp();
+        } else {
+            initKeys();
+        }
+    }
+
+    /** True once the first data key is there. */
+    public boolean isReady() {
+        return mEpoch.get() != null;
+    }
+
+    /** Waits for the first data key, returns false on timeout. */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!isReady()) {
+            startWarmUp(); // again, after close
+        }
+        return mReady.await(timeout, unit);
+    }
+
+    /**
+     * Completes with the first data key, without holding a thread while
+     * waiting. Completing the returned future has no effect on the cryptor.
+     */
+    public CompletableFuture<Void> whenReady() {
+        if (!isReady()) {
+            startWarmUp(); // again, after close
+        }
+        return mReadyFuture.copy();
+    }
+
+    /** How long acquireEpoch waits for the first key of a lazy start. */
+    public void setReadyTimeout(long millis) {
+        mReadyTimeoutMs = millis;
+    }
+
+    public long getReadyTimeout() {
+        return mReadyTimeoutMs;
+    }
+
+    private void startWarmUp() {
+        if (!mWarming.compareAndSet(false, true)) {
+            return;
+        }
+
+        rotator().execute(() -> {
+            try {
+                long backoff = WARMUP_MIN_BACKOFF_MS;
+                // the first try may start the provider's pool, retries go
+                // straight to the source so each one is a single call
+                boolean retry = false;
+                while (!isReady()) {
+                    try {
+                        KeyEpoch k = retry ? mKeys.fetchDataKey(mKeyId) : fetchKey();
+                        if (mEpoch.compareAndSet(null, k)) {
+                            markReady();
+                        } else {
+                            k.release();
+                        }
+                    } catch (Exception e) {
+                        retry = true;
+                        mWarmUpError = e;
+                        // jitter, so a scaled out fleet does not retry in lockstep
+                        long wait = backoff + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+                        LOG.warn("data key warm-up failed, retrying in {} ms", wait, e);
+                        Thread.sleep(wait);
+                        backoff = Math.min(backoff * 2, WARMUP_MAX_BACKOFF_MS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // closed before the first key came
+            } finally {
+                mWarming.set(false);
+            }
+        });
+    }
+
+    private KeyEpoch awaitFirstEpoch() throws NoSuchAlgorithmException {
+        try {
+            if (!awaitReady(mReadyTimeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("no data key after " + mReadyTimeoutMs + " ms", mWarmUpError);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted waiting for the first data key", e);
+        }
+        return mEpoch.get();
+    }
+
+    /**
+     * Enables background rotation. Once the usage count reaches
+     * ratio * rotationPeriod, the next data key is fetched on a background
+     * thread and swapped in when the period is exhausted, so encryption never
+     * waits on KMS. A ratio of 0 restores inline rotation.
+     */
+    public synchronized void setRotationLowWaterMark(double ratio) {
+        if (ratio < 0 || ratio >= 1) {
+            throw new IllegalArgumentException("low water mark must be in [0, 1): " + ratio);
+        }
+        mLowWaterMark = ratio;
+    }
+
+    public double getRotationLowWaterMark() {
+        return mLowWaterMark;
+    }
+
+    /** Number of encryptions per data key, applies to the current epoch too. */
+    public void setRotationPeriod(int rotationPeriod) {
+        if (rotationPeriod <= 0) {
+            throw new IllegalArgumentException("rotation period must be positive: " + rotationPeriod);
+        }
+        mRotationPeriod = rotationPeriod;
+    }
+
+    public int getRotationPeriod() {
+        return mRotationPeriod;
     }
 
     private void initKeys() throws NoSuchAlgorithmException {
-        KmsClient client;
-
-        if (mAwsAccessKey != null && mAwsSecretKey != null) {
-            AwsBasicCredentials creds = AwsBasicCredentials.create(
-                    mAwsAccessKey, mAwsSecretKey
-            );
-
-            if (mProxy != null) {
-                SdkHttpClient httpClient = ApacheHttpClient.builder()
-                    .proxyConfiguration(ProxyConfiguration.builder()
-                        .endpoint(URI.create(mProxy))
-                        .build())
-                    .build();
-
-                // Initialize the KMS client
-                client = KmsClient.builder()
-                    .httpClient(httpClient)
-                    .credentialsProvider(StaticCredentialsProvider.create(creds))
-                    .region(Region.AP_SOUTHEAST_1)
-                    .build();
-
-            } else {
-                // Initialize the KMS client
-                client = KmsClient.builder()
-                    .credentialsProvider(StaticCredentialsProvider.create(creds))
-                    .region(Region.AP_SOUTHEAST_1)
-                    .build();
+        retire(mEpoch.getAndSet(fetchKey()));
+        retire(mNextEpoch.getAndSet(null));
+        markReady();
+    }
+
+    // drops the cryptor's reference, the key goes with the last user
+    private static void retire(KeyEpoch epoch) {
+        if (epoch != null) {
+            epoch.release();
+        }
+    }
+
+    private void markReady() {
+        mReady.countDown();
+        mReadyFuture.complete(null);
+    }
+
+    private void prefetchKeys() {
+        if (mNextEpoch.get() != null || System.nanoTime() - mRetryAt < 0 || !mFetching.compareAndSet(false, true)) {
+            return;
+        }
+
+        rotator().execute(() -> {
+            try {
+                mNextEpoch.set(fetchKey());
+            } catch (Exception e) {
+                // keep encrypting with the current key, try again later
+                LOG.warn("background data key fetch failed, keeping current key", e);
+                mRetryAt = System.nanoTime() + PREFETCH_RETRY_NANOS;
+            } finally {
+                mFetching.set(false);
             }
-        } else {
-            client = KmsClient.builder()
-                .region(Region.AP_SOUTHEAST_1)
-                .build();
+        });
+    }
+
+    private synchronized ExecutorService rotator() {
+        if (mRotator == null) {
+            mRotator = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "kms-key-rotation");
+                t.setDaemon(true);
+                return t;
+            });
         }
+        return mRotator;
+    }
 
-        // Define the GenerateDataKey request
-        GenerateDataKeyRequest request = GenerateDataKeyRequest.builder()
-            .keyId(mKeyId)
-            .keySpec("AES_128")
-            .build();
+    private KeyEpoch fetchKey() throws NoSuchAlgorithmException {
+        // ready from the pool unless the provider has to go to kms
+        return mKeys.generateDataKey(mKeyId);
+    }
 
-        // Call kms:GenerateDataKey
-        GenerateDataKeyResponse response = client.generateDataKey(request);
-        byte[] keyPt = response.plaintext().asByteArray();
-        mKeyParam = new KeyParameter(keyPt);
+    /**
+     * True when the next {@link #acquireEpoch()} would wait for the key
+     * provider on the calling thread, i.e. an inline rotation is due and no
+     * other thread is doing it already. Never true with a low water mark.
+     */
+    public boolean needsKeyFetch() {
+        KeyEpoch cur = mEpoch.get();
+        if (cur == null) {
+            return true; // still warming up
+        }
+        return mLowWaterMark == 0
+            && cur.getUsage() >= mRotationPeriod
+            && !mRotating.get();
+    }
 
-        byte[] keyCt = response.ciphertextBlob().asByteArray();
-        mKeyCtB64 = Base64.getEncoder().encodeToString(keyCt);
+    /**
+     * Runs the inline rotation that {@link #needsKeyFetch()} reports on the
+     * executor, so the caller keeps encrypting with the current key instead
+     * of waiting on the provider. Returns false if no rotation was started.
+     */
+    boolean rotateOn(Executor executor) {
+        KeyEpoch cur = mEpoch.get();
+        if (cur == null || !needsKeyFetch() || System.nanoTime() - mRetryAt < 0
+            || !mRotating.compareAndSet(false, true)) {
+            return false;
+        }
 
-        mRotationCount = 0;
+        try {
+            executor.execute(() -> {
+                try {
+                    if (mEpoch.get() == cur) {
+                        initKeys();
+                        mMetrics.recordRotation();
+                    }
+                } catch (Exception e) {
+                    LOG.warn("data key rotation failed, keeping current key", e);
+                    mRetryAt = System.nanoTime() + PREFETCH_RETRY_NANOS;
+                } finally {
+                    mRotating.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mRotating.set(false);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the epoch to encrypt the next message with, rotating first if
+     * the current one is used up. Callers that encrypt several fields should
+     * acquire once and pass the same epoch to every call, so the context they
+     * publish always names the key that was used. The caller holds a
+     * reference and must {@link KeyEpoch#release()} it when done, a retired
+     * key is wiped once its last user let go.
+     */
+    public KeyEpoch acquireEpoch() throws NoSuchAlgorithmException {
+        for (;;) {
+            KeyEpoch e = rotateIfDue();
+            if (e.acquire()) {
+                return e;
+            }
+            // retired and released while we looked, take the next one
+        }
+    }
+
+    private KeyEpoch rotateIfDue() throws NoSuchAlgorithmException {
+        KeyEpoch cur = mEpoch.get();
+        if (cur == null) {
+            cur = awaitFirstEpoch();
+        }
+        long used = cur.getUsage();
+
+        if (mLowWaterMark > 0) {
+            if (used >= mRotationPeriod * mLowWaterMark) {
+                prefetchKeys();
+            }
+            KeyEpoch next = mNextEpoch.get();
+            // swap in the ready key, never wait on kms here
+            if (used >= mRotationPeriod && next != null && mEpoch.compareAndSet(cur, next)) {
+                mNextEpoch.compareAndSet(next, null);
+                retire(cur);
+                mMetrics.recordRotation();
+            }
+        } else if (used >= mRotationPeriod && mRotating.compareAndSet(false, true)) {
+            // other threads keep using the current epoch while we rotate
+            try {
+                if (mEpoch.get() == cur) {
+                    initKeys();
+                    mMetrics.recordRotation();
+                }
+            } finally {
+                mRotating.set(false);
+            }
+        }
+        return mEpoch.get();
+    }
+
+    /**
+     * The kms connection shared by every rotation, null unless the keys come
+     * from an {@link AWSKMSKeyProvider}. Use it to tune the connection pool
+     * and timeouts.
+     */
+    public KmsConnection getKmsConnection() {
+        return mKeys instanceof AWSKMSKeyProvider ? ((AWSKMSKeyProvider) mKeys).getKmsConnection() : null;
+    }
+
+    public DataKeyProvider getKeyProvider() {
+        return mKeys;
+    }
+
+    /**
+     * Stops the background rotation thread and closes the key provider if
+     * this cryptor created it, which releases the kms client. Both are
+     * recreated on demand, so a stopped route can be started again. A
+     * provider passed in is left to its owner.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mRotator != null) {
+                mRotator.shutdownNow();
+                mRotator = null;
+            }
+        }
+        if (mOwnsKeys) {
+            mKeys.close();
+        }
+        resetHashCache();
+        resetDeterministic();
+    }
+
+    /**
+     * Installs a metrics sink, {@link HashCryptMetrics#NOOP} (the default)
+     * or null turns metrics off.
+     */
+    public void setMetrics(HashCryptMetrics metrics) {
+        HashCryptMetrics m = metrics != null ? metrics : HashCryptMetrics.NOOP;
+        if (m == mMetrics) {
+            return; // already bound
+        }
+        m.bindEpoch(mEpoch::get);
+        mKeys.setMetrics(m);
+        mMetrics = m;
+    }
 
-        client.close();
+    public HashCryptMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * The current epoch, without a reference: for its context and counters.
+     * Encrypt with {@link #acquireEpoch()}.
+     */
+    public KeyEpoch getEpoch() {
+        return mEpoch.get();
     }
 
     public String getDecryptionContext(){
-        return String.format("%s:%s", mKeyCtB64, mKeyId);
+        KeyEpoch cur = mEpoch.get();
+        return cur == null ? null : cur.getDecryptionContext();
     }
 
     public String doEncryptUTF8(
@@ -179,29 +551,201 @@ public class AWSKMSHashcryptor {
         InvalidCipherTextException,
         NoSuchAlgorithmException
     {
-        return doEncrypt(plaintext.getBytes("UTF-8"));
+        return doEncrypt(plaintext.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String doEncryptUTF8(
+            KeyEpoch epoch,
+            String plaintext
+    ) throws
+        java.io.UnsupportedEncodingException,
+        InvalidCipherTextException
+    {
+        return doEncrypt(epoch, plaintext.getBytes(StandardCharsets.UTF_8));
     }
 
     public String doEncrypt(byte[] plaintext) throws InvalidCipherTextException, NoSuchAlgorithmException {
+        KeyEpoch epoch = acquireEpoch();
+        try {
+            return doEncrypt(epoch, plaintext);
+        } finally {
+            epoch.release();
+        }
+    }
 
-        // in and out
-        if (mRotationCount >= mRotationPeriod) {
-            // get new keys
-            initKeys();
+    public String doEncrypt(KeyEpoch epoch, byte[] plaintext) throws InvalidCipherTextException {
+        HashCryptMetrics metrics = mMetrics;
+        long t0 = metrics != HashCryptMetrics.NOOP ? System.nanoTime() : 0;
+
+        CipherEngine eng = mEngine;
+        byte[] buf = scratch(SCRATCH_OUT, eng.getEncryptedSize(plaintext.length));
+        int len = eng.encrypt(epoch, plaintext, 0, plaintext.length, buf, 0);
+
+        epoch.use(1); // in and out
+        String e = Encoders.toBase64(buf, 0, len);
+        if (metrics != HashCryptMetrics.NOOP) {
+            metrics.recordEncrypt(System.nanoTime() - t0, plaintext.length);
+        }
+        return e;
+    }
+
+    /**
+     * Encrypts into an {@link Envelope}: version, epoch id, then the engine
+     * output. The result names its key by id only, the context has to be
+     * published separately.
+     */
+    public byte[] doEncryptEnvelope(KeyEpoch epoch, byte[] plaintext) throws InvalidCipherTextException {
+        HashCryptMetrics metrics = mMetrics;
+        long t0 = metrics != HashCryptMetrics.NOOP ? System.nanoTime() : 0;
+
+        CipherEngine eng = mEngine;
+        byte[] buf = scratch(SCRATCH_OUT, Envelope.HEADER_LEN + eng.getEncryptedSize(plaintext.length));
+        int len = Envelope.HEADER_LEN + eng.encrypt(epoch, plaintext, 0, plaintext.length, buf, Envelope.HEADER_LEN);
+        Envelope.writeHeader(buf, 0, epoch.getEpochId());
+
+        epoch.use(1); // in and out
+        byte[] env = Arrays.copyOf(buf, len);
+        if (metrics != HashCryptMetrics.NOOP) {
+            metrics.recordEncrypt(System.nanoTime() - t0, plaintext.length);
+        }
+        return env;
+    }
+
+    /** The envelope as unpadded base64url text. */
+    public String doEncryptEnvelopeUTF8(KeyEpoch epoch, String plaintext) throws InvalidCipherTextException {
+        return Envelope.toText(doEncryptEnvelope(epoch, plaintext.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /** Decrypts an envelope made with epoch, the ids must match. */
+    public String doDecryptEnvelopeUTF8(KeyEpoch epoch, byte[] env) throws InvalidCipherTextException {
+        if (Envelope.readEpochId(env, 0, env.length) != epoch.getEpochId()) {
+            throw new IllegalArgumentException("envelope was not encrypted with epoch " + epoch.getEpochIdString());
+        }
+        return doDecryptUTF8(epoch, Arrays.copyOfRange(env, Envelope.HEADER_LEN, env.length));
+    }
+
+    /**
+     * Encrypts plaintext (position to limit) and writes the base64 text as
+     * ascii bytes into out. Both buffers may be direct. Returns the number
+     * of bytes written, out must have room for
+     * Encoders.base64Length(getCipherEngine().getEncryptedSize(n)).
+     */
+    public int doEncrypt(KeyEpoch epoch, ByteBuffer plaintext, ByteBuffer out) throws InvalidCipherTextException {
+        CipherEngine eng = mEngine;
+        int n = plaintext.remaining();
+        // before plaintext is consumed, so an overflow leaves both buffers as they were
+        if (out.remaining() < Encoders.base64Length(eng.getEncryptedSize(n))) {
+            throw new BufferOverflowException();
+        }
+        byte[] buf = scratch(SCRATCH_OUT, eng.getEncryptedSize(n));
+        int len = encryptInto(eng, epoch, plaintext, buf);
+        return Encoders.encodeBase64(buf, 0, len, out);
+    }
+
+    /**
+     * Same as {@link #doEncrypt(KeyEpoch, ByteBuffer, ByteBuffer)} but
+     * writes the raw nonce and ciphertext, without base64.
+     */
+    public int doEncryptRaw(KeyEpoch epoch, ByteBuffer plaintext, ByteBuffer out) throws InvalidCipherTextException {
+        CipherEngine eng = mEngine;
+        int n = plaintext.remaining();
+        if (out.remaining() < eng.getEncryptedSize(n)) {
+            throw new BufferOverflowException();
+        }
+        if (out.hasArray()) {
+            int len = encryptInto(eng, epoch, plaintext, out.array(), out.arrayOffset() + out.position());
+            out.position(out.position() + len);
+            return len;
+        }
+        byte[] buf = scratch(SCRATCH_OUT, eng.getEncryptedSize(n));
+        int len = encryptInto(eng, epoch, plaintext, buf);
+        out.put(buf, 0, len);
+        return len;
+    }
+
+    private int encryptInto(CipherEngine eng, KeyEpoch epoch, ByteBuffer plaintext, byte[] out) throws InvalidCipherTextException {
+        return encryptInto(eng, epoch, plaintext, out, 0);
+    }
+
+    private int encryptInto(CipherEngine eng, KeyEpoch epoch, ByteBuffer plaintext, byte[] out, int outOff) throws InvalidCipherTextException {
+        HashCryptMetrics metrics = mMetrics;
+        long t0 = metrics != HashCryptMetrics.NOOP ? System.nanoTime() : 0;
+        int n = plaintext.remaining();
+        int len;
+        if (plaintext.hasArray()) {
+            len = eng.encrypt(epoch, plaintext.array(), plaintext.arrayOffset() + plaintext.position(), n, out, outOff);
+        } else {
+            byte[] in = scratch(SCRATCH_IN, n);
+            plaintext.duplicate().get(in, 0, n);
+            len = eng.encrypt(epoch, in, 0, n, out, outOff);
+        }
+        plaintext.position(plaintext.limit());
+        epoch.use(1); // in and out
+        if (metrics != HashCryptMetrics.NOOP) {
+            metrics.recordEncrypt(System.nanoTime() - t0, n);
         }
+        return len;
+    }
 
-        byte[] nonce = new byte[mNonceLen];
-        SecureRandom sr = new SecureRandom();
-        sr.nextBytes(nonce);
+    /**
+     * Decodes base64 ciphertext (position to limit) and writes the plaintext
+     * into out. Returns the plaintext length. The ciphertext is consumed
+     * only on success, an overflow leaves both buffers as they were.
+     */
+    public int doDecrypt(KeyEpoch epoch, ByteBuffer ciphertext, ByteBuffer out) throws InvalidCipherTextException {
+        byte[] raw = scratch(SCRATCH_IN, Encoders.decodedBase64Length(ciphertext.remaining()));
+        int n = Encoders.decodeBase64(ciphertext.duplicate(), raw, 0);
+        int len = decryptInto(epoch, raw, 0, n, out);
+        ciphertext.position(ciphertext.limit());
+        return len;
+    }
 
-        PaddedBufferedBlockCipher cip = initCipher(true, nonce);
-        byte[] buf = new byte[cip.getOutputSize(plaintext.length) + mNonceLen];
-        int plen = cip.processBytes(plaintext, 0, plaintext.length, buf, mNonceLen);
-        cip.doFinal(buf, mNonceLen + plen);
-        System.arraycopy(nonce, 0, buf, 0, mNonceLen);
+    /** Decrypts raw nonce and ciphertext (position to limit) into out. */
+    public int doDecryptRaw(KeyEpoch epoch, ByteBuffer ciphertext, ByteBuffer out) throws InvalidCipherTextException {
+        int n = ciphertext.remaining();
+        if (ciphertext.hasArray()) {
+            int len = decryptInto(epoch, ciphertext.array(), ciphertext.arrayOffset() + ciphertext.position(), n, out);
+            ciphertext.position(ciphertext.limit());
+            return len;
+        }
+        byte[] raw = scratch(SCRATCH_IN, n);
+        ciphertext.duplicate().get(raw, 0, n);
+        int len = decryptInto(epoch, raw, 0, n, out);
+        ciphertext.position(ciphertext.limit());
+        return len;
+    }
 
-        mRotationCount += 1; // in and out
-        return Base64.getEncoder().encodeToString(buf);
+    private int decryptInto(KeyEpoch epoch, byte[] in, int off, int len, ByteBuffer out) throws InvalidCipherTextException {
+        HashCryptMetrics metrics = mMetrics;
+        long t0 = metrics != HashCryptMetrics.NOOP ? System.nanoTime() : 0;
+
+        CipherEngine eng = mEngine;
+        int max = eng.getDecryptedSize(len);
+        int n;
+        if (out.hasArray() && out.remaining() >= max) {
+            n = eng.decrypt(epoch, in, off, len, out.array(), out.arrayOffset() + out.position());
+            out.position(out.position() + n);
+        } else {
+            byte[] buf = scratch(SCRATCH_OUT, max);
+            n = eng.decrypt(epoch, in, off, len, buf, 0);
+            if (out.remaining() < n) {
+                throw new BufferOverflowException();
+            }
+            out.put(buf, 0, n);
+        }
+        if (metrics != HashCryptMetrics.NOOP) {
+            metrics.recordDecrypt(System.nanoTime() - t0, len);
+        }
+        return n;
+    }
+
+    private static byte[] scratch(ThreadLocal<byte[]> tl, int size) {
+        byte[] b = tl.get();
+        if (b.length < size) {
+            b = new byte[Math.max(size, b.length * 2)];
+            tl.set(b);
+        }
+        return b;
     }
 
     public String doDecryptUTF8(String ciphertext) throws InvalidCipherTextException {
@@ -209,37 +753,83 @@ public class AWSKMSHashcryptor {
     }
 
     public String doDecryptUTF8(byte[] ciphertext) throws InvalidCipherTextException {
-        byte[] nonce = Arrays.copyOf(ciphertext, mNonceLen);
-        PaddedBufferedBlockCipher cip = initCipher(false, nonce);
+        for (;;) {
+            KeyEpoch epoch = mEpoch.get();
+            if (epoch == null) {
+                throw new IllegalStateException("no data key yet");
+            }
+            if (epoch.acquire()) {
+                try {
+                    return doDecryptUTF8(epoch, ciphertext);
+                } finally {
+                    epoch.release();
+                }
+            }
+        }
+    }
+
+    public String doDecryptUTF8(KeyEpoch epoch, String ciphertext) throws InvalidCipherTextException {
+        return doDecryptUTF8(epoch, Base64.getDecoder().decode(ciphertext));
+    }
+
+    public String doDecryptUTF8(KeyEpoch epoch, byte[] ciphertext) throws InvalidCipherTextException {
+        HashCryptMetrics metrics = mMetrics;
+        long t0 = metrics != HashCryptMetrics.NOOP ? System.nanoTime() : 0;
+
+        CipherEngine eng = mEngine;
+        // decrypt into an exact-size view of the output, no trailing padding to strip
+        byte[] buf = new byte[eng.getDecryptedSize(ciphertext.length)];
+        int plen = eng.decrypt(epoch, ciphertext, 0, ciphertext.length, buf, 0);
+        String p = new String(buf, 0, plen, StandardCharsets.UTF_8);
+        if (metrics != HashCryptMetrics.NOOP) {
+            metrics.recordDecrypt(System.nanoTime() - t0, ciphertext.length);
+        }
+        return p;
+    }
+
+    /**
+     * Selects the cipher engine by name, see {@link CipherEngines}. bc-cbc
+     * and jca-cbc share the original wire format, so either one decrypts
+     * existing ciphertexts.
+     */
+    public void setCipherEngine(String name) {
+        mEngine = CipherEngines.forName(name);
+    }
 
-        byte[] buf = new byte[cip.getOutputSize(ciphertext.length - mNonceLen)];
-        cip.processBytes(ciphertext, mNonceLen, ciphertext.length - mNonceLen, null, 0);
-        cip.doFinal(buf, 0);
-        return new String(terminateAtNullByte(buf));
+    public void setCipherEngine(CipherEngine engine) {
+        mEngine = engine;
+    }
+
+    public CipherEngine getCipherEngine() {
+        return mEngine;
     }
 
     public void initHashDigest(String algo, String salt) throws NoSuchAlgorithmException, UnsupportedEncodingException {
         if (algo.equals("SHA-256") || algo.equals("SHA-512")) {
+            MessageDigest.getInstance(algo); // fail early
+            byte[] saltBytes = salt.getBytes("UTF-8");
             mHashAlgo = algo;
-            mHashSalt = salt.getBytes("UTF-8");
+            mHashSalt = saltBytes;
+            resetHashCache();
+            mDigestProto = ThreadLocal.withInitial(() -> {
+                try {
+                    MessageDigest md = MessageDigest.getInstance(algo);
+                    md.update(saltBytes);
+                    return md;
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
         } else if (algo.equals("dropField") || algo.equals("drop")) {
             mHashAlgo = null;
             mHashSalt = null;
+            mDigestProto = null;
+            resetHashCache();
         } else {
             throw new NoSuchAlgorithmException(algo);
         }
     }
 
-    private PaddedBufferedBlockCipher initCipher(boolean enc, byte[] nonce){
-        // jason.chia
-        // using CTR mode due to simplicity
-        // we don't need fancy GCMs here since auth/int is not a requirement
-        CBCBlockCipher cbc = new CBCBlockCipher(new AESEngine());
-        PaddedBufferedBlockCipher cip = new PaddedBufferedBlockCipher(cbc, new PKCS7Padding());
-        cip.init(enc, new ParametersWithIV(mKeyParam, nonce));
-        return cip;
-    }
-
     public static byte[] terminateAtNullByte(byte[] buffer) {
         int nullPos = -1;
         for (int i = 0; i < buffer.length; i++) {
@@ -256,28 +846,229 @@ public class AWSKMSHashcryptor {
     }
 
     public String doHashUTF8(String inp) throws UnsupportedEncodingException, NoSuchAlgorithmException {
-        return doHash(inp.getBytes("UTF-8"));
+        return doHash(inp.getBytes(StandardCharsets.UTF_8));
     }
 
     public String doHash(byte[] buf) throws NoSuchAlgorithmException {
-        if (mHashAlgo != null && mHashSalt != null) {
-            // we must create one new instance
-            // this is because this is not thread safe
-            MessageDigest hip = MessageDigest.getInstance(mHashAlgo);
-            // prepend hashing salt
-            hip.update(mHashSalt);
-            return bytesToHex(hip.digest(buf));
+        HashCryptMetrics metrics = mMetrics;
+        if (metrics == HashCryptMetrics.NOOP) {
+            return hashBytes(buf);
+        }
+        long t0 = System.nanoTime();
+        String h = hashBytes(buf);
+        metrics.recordHash(System.nanoTime() - t0, buf.length);
+        return h;
+    }
+
+    private String hashBytes(byte[] buf) throws NoSuchAlgorithmException {
+        ThreadLocal<MessageDigest> proto = mDigestProto;
+        if (proto != null) {
+            HashCache cache = mHashCache;
+            if (cache == null) {
+                return hexDigest(proto, buf, 0, buf.length);
+            }
+
+            String h = cache.get(buf);
+            if (h == null) {
+                h = hexDigest(proto, buf, 0, buf.length);
+                cache.put(buf, h);
+            }
+            return h;
         }
 
         return null;
     }
 
-    public static String bytesToHex(byte[] bytes) {
-        StringBuilder hashString = new StringBuilder();
-        for (byte b : bytes) {
-            hashString.append(String.format("%02x", b));
+    /**
+     * Hashes in (position to limit) and writes the hex digest as ascii bytes
+     * into out. Returns the bytes written, 0 when hashing is disabled.
+     */
+    public int doHash(ByteBuffer in, ByteBuffer out) throws NoSuchAlgorithmException {
+        HashCryptMetrics metrics = mMetrics;
+        if (metrics == HashCryptMetrics.NOOP) {
+            return hashInto(in, out);
+        }
+        long t0 = System.nanoTime();
+        int len = in.remaining();
+        int n = hashInto(in, out);
+        metrics.recordHash(System.nanoTime() - t0, len);
+        return n;
+    }
+
+    private int hashInto(ByteBuffer in, ByteBuffer out) throws NoSuchAlgorithmException {
+        ThreadLocal<MessageDigest> proto = mDigestProto;
+        if (proto == null) {
+            in.position(in.limit());
+            return 0;
+        }
+        // before in is consumed, so an overflow leaves both buffers as they were
+        if (out.remaining() < Encoders.hexLength(proto.get().getDigestLength())) {
+            throw new BufferOverflowException();
+        }
+
+        HashCache cache = mHashCache;
+        if (cache != null && in.hasArray()) {
+            int off = in.arrayOffset() + in.position();
+            String h = cache.get(in.array(), off, in.remaining());
+            if (h == null) {
+                h = hexDigest(proto, in.array(), off, in.remaining());
+                cache.put(in.array(), off, in.remaining(), h);
+            }
+            in.position(in.limit());
+            for (int i = 0; i < h.length(); i++) {
+                out.put((byte) h.charAt(i));
+            }
+            return h.length();
         }
-        return hashString.toString();
+
+        MessageDigest md = saltedDigest(proto);
+        md.update(in);
+        byte[] dig = scratch(SCRATCH_DIGEST, md.getDigestLength());
+        try {
+            int n = md.digest(dig, 0, dig.length);
+            return Encoders.encodeHex(dig, 0, n, out);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String hexDigest(ThreadLocal<MessageDigest> proto, byte[] buf, int off, int len) throws NoSuchAlgorithmException {
+        MessageDigest md = saltedDigest(proto);
+        md.update(buf, off, len);
+        byte[] dig = scratch(SCRATCH_DIGEST, md.getDigestLength());
+        try {
+            int n = md.digest(dig, 0, dig.length);
+            byte[] hex = new byte[Encoders.hexLength(n)];
+            Encoders.encodeHex(dig, 0, n, hex, 0);
+            return new String(hex, StandardCharsets.ISO_8859_1);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Caches up to size digests of repeated inputs, 0 disables the cache.
+     * Inputs longer than 64 bytes are always hashed.
+     */
+    public synchronized void setHashCacheSize(int size) {
+        HashCache old = mHashCache;
+        mHashCache = size > 0 ? new HashCache(size) : null;
+        if (old != null) {
+            old.clear();
+        }
+    }
+
+    /**
+     * Turns on deterministic mode, see {@link DeterministicCipher}. context
+     * names the data key to derive from, as ciphertext:keyid, e.g. from
+     * {@link #newDeterministicKey()}. It must stay the same for as long as
+     * values are to be joined. null turns the mode off.
+     */
+    public void setDeterministicKey(String context) {
+        mDetContext = context;
+        resetDeterministic();
+    }
+
+    public boolean isDeterministic() {
+        return mDetContext != null;
+    }
+
+    /** A fresh context for {@link #setDeterministicKey(String)}. */
+    public String newDeterministicKey() throws NoSuchAlgorithmException {
+        KeyEpoch k = fetchKey();
+        k.destroy();
+        return k.getDecryptionContext();
+    }
+
+    /* the current cipher with a reference taken, release it after use */
+    private DeterministicCipher acquireDeterministic() {
+        for (;;) {
+            DeterministicCipher d = mDet;
+            if (d == null) {
+                d = unwrapDeterministic();
+            }
+            if (d.acquire()) {
+                return d;
+            }
+            // reset while we looked, the next one is unwrapped
+        }
+    }
+
+    private DeterministicCipher unwrapDeterministic() {
+        synchronized (mDetLock) {
+            if (mDet == null) {
+                String c = mDetContext;
+                if (c == null) {
+                    throw new IllegalStateException("no deterministic key set");
+                }
+                mDet = DeterministicCipher.unwrap(mKeys, c);
+            }
+            return mDet;
+        }
+    }
+
+    private void resetDeterministic() {
+        synchronized (mDetLock) {
+            if (mDet != null) {
+                // zeroed once the callers in flight are done with it
+                DeterministicCipher d = mDet;
+                mDet = null;
+                d.release();
+            }
+        }
+    }
+
+    public String doEncryptDeterministicUTF8(String plaintext) throws InvalidCipherTextException {
+        HashCryptMetrics metrics = mMetrics;
+        long t0 = metrics != HashCryptMetrics.NOOP ? System.nanoTime() : 0;
+
+        DeterministicCipher d = acquireDeterministic();
+        String e;
+        try {
+            e = d.encryptUTF8(plaintext);
+        } finally {
+            d.release();
+        }
+        if (metrics != HashCryptMetrics.NOOP) {
+            metrics.recordEncrypt(System.nanoTime() - t0, plaintext.length());
+        }
+        return e;
+    }
+
+    public String doDecryptDeterministicUTF8(String ciphertext) throws InvalidCipherTextException {
+        DeterministicCipher d = acquireDeterministic();
+        try {
+            return d.decryptUTF8(ciphertext);
+        } finally {
+            d.release();
+        }
+    }
+
+    public HashCache getHashCache() {
+        return mHashCache;
+    }
+
+    private synchronized void resetHashCache() {
+        // digests of the old salt must not be served
+        HashCache cache = mHashCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    private MessageDigest saltedDigest(ThreadLocal<MessageDigest> proto) throws NoSuchAlgorithmException {
+        try {
+            // the prototype already holds the salt, the clone starts from there
+            return (MessageDigest) proto.get().clone();
+        } catch (CloneNotSupportedException e) {
+            MessageDigest hip = MessageDigest.getInstance(mHashAlgo);
+            hip.update(mHashSalt);
+            return hip;
+        }
+    }
+
+    public static String bytesToHex(byte[] bytes) {
+        return Encoders.toHex(bytes);
     }
 
     public static byte[] hexToBytes(String s) {
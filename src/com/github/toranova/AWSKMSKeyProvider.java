@@ -0,0 +1,221 @@
+package com.github.toranova;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.kms.model.DecryptRequest;
+import software.amazon.awssdk.services.kms.model.DecryptResponse;
+import software.amazon.awssdk.services.kms.model.GenerateDataKeyRequest;
+import software.amazon.awssdk.services.kms.model.GenerateDataKeyResponse;
+
+/**
+ * Data keys from kms:GenerateDataKey, unwrapped with kms:Decrypt.
+ *
+ * Every key id gets a small pool of keys generated ahead of time. The pool
+ * is filled with concurrent requests on first use and topped up in the
+ * background whenever a key is taken, so a rotation normally takes a ready
+ * key instead of waiting on kms. Only an empty pool (first use, or kms
+ * failing for longer than the pool lasts) falls back to a call on the
+ * caller's thread.
+ */
+public class AWSKMSKeyProvider implements DataKeyProvider {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AWSKMSKeyProvider.class);
+
+    private final KmsConnection mKms;
+    private final int mPoolSize;
+    private final ConcurrentHashMap<String, Pool> mPools = new ConcurrentHashMap<>();
+    private volatile HashCryptMetrics mMetrics = HashCryptMetrics.NOOP;
+    private ExecutorService mFiller;
+
+    private static final class Pool {
+        final BlockingQueue<KeyEpoch> ready = new LinkedBlockingQueue<>();
+        // requests in flight, guarded by the pool
+        final List<Future<?>> inflight = new ArrayList<>();
+    }
+
+    /**
+     * @param poolSize keys kept ready per key id, 0 disables the pool
+     */
+    public AWSKMSKeyProvider(KmsConnection kms, int poolSize) {
+        if (poolSize < 0) {
+            throw new IllegalArgumentException("pool size must not be negative: " + poolSize);
+        }
+        mKms = kms;
+        mPoolSize = poolSize;
+    }
+
+    public AWSKMSKeyProvider(KmsConnection kms) {
+        this(kms, 2);
+    }
+
+    public KmsConnection getKmsConnection() {
+        return mKms;
+    }
+
+    public int getPoolSize() {
+        return mPoolSize;
+    }
+
+    /** Keys ready for keyId right now. */
+    public int getReady(String keyId) {
+        Pool p = mPools.get(keyId);
+        return p == null ? 0 : p.ready.size();
+    }
+
+    @Override
+    public void setMetrics(HashCryptMetrics metrics) {
+        mMetrics = metrics != null ? metrics : HashCryptMetrics.NOOP;
+    }
+
+    @Override
+    public KeyEpoch generateDataKey(String keyId) {
+        Pool p = mPools.computeIfAbsent(keyId, k -> new Pool());
+        KeyEpoch k = p.ready.poll();
+        // a key fetched inline counts toward the pool target
+        refill(keyId, p, k != null ? 0 : 1);
+        return k != null ? k : fetch(keyId);
+    }
+
+    @Override
+    public KeyEpoch fetchDataKey(String keyId) {
+        return fetch(keyId);
+    }
+
+    /**
+     * Fills the pool of keyId and waits for it. Throws the kms error if not
+     * a single key could be generated.
+     */
+    public void warmUp(String keyId) throws InterruptedException {
+        Pool p = mPools.computeIfAbsent(keyId, k -> new Pool());
+        RuntimeException last = null;
+        for (Future<?> f : refill(keyId, p, 0)) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                last = e.getCause() instanceof RuntimeException
+                    ? (RuntimeException) e.getCause()
+                    : new IllegalStateException(e.getCause());
+            }
+        }
+        if (last != null && p.ready.isEmpty()) {
+            throw last;
+        }
+    }
+
+    /*
+     * Starts enough requests to fill the pool, less the ones the caller
+     * makes inline, and returns every request in flight for it, including
+     * the ones started earlier.
+     */
+    private List<Future<?>> refill(String keyId, Pool p, int inline) {
+        synchronized (p) {
+            p.inflight.removeIf(Future::isDone);
+            int need = mPoolSize - p.ready.size() - p.inflight.size() - inline;
+            for (int i = 0; i < need; i++) {
+                p.inflight.add(filler().submit(() -> {
+                    try {
+                        p.ready.add(fetch(keyId));
+                    } catch (RuntimeException e) {
+                        // the next rotation calls kms itself if the pool runs dry
+                        LOG.warn("data key pool refill failed for {}", keyId, e);
+                        throw e;
+                    }
+                }));
+            }
+            return new ArrayList<>(p.inflight);
+        }
+    }
+
+    private synchronized ExecutorService filler() {
+        if (mFiller == null) {
+            mFiller = Executors.newFixedThreadPool(Math.max(1, mPoolSize), r -> {
+                Thread t = new Thread(r, "kms-data-key");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return mFiller;
+    }
+
+    private KeyEpoch fetch(String keyId) {
+        // Define the GenerateDataKey request
+        GenerateDataKeyRequest request = GenerateDataKeyRequest.builder()
+            .keyId(keyId)
+            .keySpec("AES_128")
+            .build();
+
+        // Call kms:GenerateDataKey
+        HashCryptMetrics metrics = mMetrics;
+        long t0 = System.nanoTime();
+        GenerateDataKeyResponse response;
+        try {
+            response = mKms.call(c -> c.generateDataKey(request));
+        } catch (RuntimeException e) {
+            metrics.recordKmsCall("GenerateDataKey", System.nanoTime() - t0, false);
+            throw e;
+        }
+        metrics.recordKmsCall("GenerateDataKey", System.nanoTime() - t0, true);
+
+        byte[] keyPt = response.plaintext().asByteArray();
+        byte[] keyCt = response.ciphertextBlob().asByteArray();
+        return new KeyEpoch(new KeyParameter(keyPt), Base64.getEncoder().encodeToString(keyCt), keyId);
+    }
+
+    @Override
+    public KeyEpoch decryptDataKey(String keyCtB64, String keyId) {
+        DecryptRequest request = DecryptRequest.builder()
+            .keyId(keyId)
+            .ciphertextBlob(SdkBytes.fromByteArray(Base64.getDecoder().decode(keyCtB64)))
+            .build();
+
+        // Call kms:Decrypt
+        HashCryptMetrics metrics = mMetrics;
+        long t0 = System.nanoTime();
+        DecryptResponse response;
+        try {
+            response = mKms.call(c -> c.decrypt(request));
+        } catch (RuntimeException e) {
+            metrics.recordKmsCall("Decrypt", System.nanoTime() - t0, false);
+            throw e;
+        }
+        metrics.recordKmsCall("Decrypt", System.nanoTime() - t0, true);
+
+        return new KeyEpoch(new KeyParameter(response.plaintext().asByteArray()), keyCtB64, keyId);
+    }
+
+    /**
+     * Stops the refills, zeros the pooled keys and releases the kms client.
+     * Everything is recreated on demand.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mFiller != null) {
+                mFiller.shutdownNow();
+                mFiller = null;
+            }
+        }
+        for (Pool p : mPools.values()) {
+            KeyEpoch k;
+            while ((k = p.ready.poll()) != null) {
+                k.destroy();
+            }
+        }
+        mKms.close();
+    }
+}
@@ -0,0 +1,64 @@
+package com.github.toranova;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
+import org.bouncycastle.crypto.paddings.PKCS7Padding;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+/**
+ * nonce(16) || AES-CBC-PKCS7(plaintext), pure java.
+ */
+public class BouncyCastleCbcEngine implements CipherEngine {
+
+    private static final int NONCE_LEN = 16;
+
+    // init() resets the per-thread cipher, so it is safe to reuse
+    private static final ThreadLocal<PaddedBufferedBlockCipher> CIPHER = ThreadLocal.withInitial(
+            () -> new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESEngine()), new PKCS7Padding())
+    );
+    private static final ThreadLocal<byte[]> IV = ThreadLocal.withInitial(() -> new byte[NONCE_LEN]);
+
+    @Override
+    public String getName() {
+        return CipherEngines.BC_CBC;
+    }
+
+    @Override
+    public int getEncryptedSize(int len) {
+        return NONCE_LEN + (len / 16 + 1) * 16;
+    }
+
+    @Override
+    public int getDecryptedSize(int len) {
+        return Math.max(len - NONCE_LEN, 0);
+    }
+
+    @Override
+    public int encrypt(KeyEpoch key, byte[] in, int inOff, int inLen, byte[] out, int outOff) throws InvalidCipherTextException {
+        byte[] nonce = CipherEngines.nonce(NONCE_LEN);
+        System.arraycopy(nonce, 0, out, outOff, NONCE_LEN);
+
+        PaddedBufferedBlockCipher cip = CIPHER.get();
+        cip.init(true, new ParametersWithIV(key.getKeyParameter(), nonce));
+        int n = cip.processBytes(in, inOff, inLen, out, outOff + NONCE_LEN);
+        n += cip.doFinal(out, outOff + NONCE_LEN + n);
+        return NONCE_LEN + n;
+    }
+
+    @Override
+    public int decrypt(KeyEpoch key, byte[] in, int inOff, int inLen, byte[] out, int outOff) throws InvalidCipherTextException {
+        if (inLen < NONCE_LEN) {
+            throw new InvalidCipherTextException("ciphertext shorter than the nonce");
+        }
+        byte[] nonce = IV.get();
+        System.arraycopy(in, inOff, nonce, 0, NONCE_LEN);
+
+        PaddedBufferedBlockCipher cip = CIPHER.get();
+        cip.init(false, new ParametersWithIV(key.getKeyParameter(), nonce));
+        int n = cip.processBytes(in, inOff + NONCE_LEN, inLen - NONCE_LEN, out, outOff);
+        n += cip.doFinal(out, outOff + n);
+        return n;
+    }
+}
@@ -0,0 +1,27 @@
+package com.github.toranova;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+
+/**
+ * A symmetric cipher behind doEncrypt/doDecrypt. An engine owns its wire
+ * format: encrypt writes the nonce followed by the ciphertext, decrypt reads
+ * them back. Implementations must be thread safe.
+ *
+ * @see CipherEngines#forName(String)
+ */
+public interface CipherEngine {
+
+    String getName();
+
+    /** Bytes written by encrypt for len bytes of plaintext, nonce included. */
+    int getEncryptedSize(int len);
+
+    /** Upper bound of the plaintext held in len bytes of ciphertext. */
+    int getDecryptedSize(int len);
+
+    /** Encrypts in with a fresh nonce into out, returns the bytes written. */
+    int encrypt(KeyEpoch key, byte[] in, int inOff, int inLen, byte[] out, int outOff) throws InvalidCipherTextException;
+
+    /** Decrypts nonce and ciphertext from in into out, returns the plaintext length. */
+    int decrypt(KeyEpoch key, byte[] in, int inOff, int inLen, byte[] out, int outOff) throws InvalidCipherTextException;
+}
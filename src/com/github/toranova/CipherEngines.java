@@ -0,0 +1,49 @@
+package com.github.toranova;
+
+import java.security.SecureRandom;
+
+/**
+ * The built in cipher engines, selectable by name:
+ *
+ *   bc-cbc      BouncyCastle AES/CBC/PKCS7, the original format (default)
+ *   jca-cbc     javax.crypto AES/CBC/PKCS5, same format, uses AES-NI
+ *   bc-gcm-siv  BouncyCastle AES-GCM-SIV, authenticated, 12 byte nonce
+ *
+ * bc-cbc and jca-cbc read each other's ciphertexts.
+ */
+public final class CipherEngines {
+
+    public static final String BC_CBC = "bc-cbc";
+    public static final String JCA_CBC = "jca-cbc";
+    public static final String BC_GCM_SIV = "bc-gcm-siv";
+
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+    private static final ThreadLocal<byte[]> NONCE = ThreadLocal.withInitial(() -> new byte[16]);
+
+    private CipherEngines() {
+    }
+
+    public static CipherEngine forName(String name) {
+        switch (name) {
+            case BC_CBC:
+                return new BouncyCastleCbcEngine();
+            case JCA_CBC:
+                return new JcaCbcEngine();
+            case BC_GCM_SIV:
+                return new GcmSivEngine();
+            default:
+                throw new IllegalArgumentException("unknown cipher engine: " + name);
+        }
+    }
+
+    /** Fills the per-thread nonce buffer with len random bytes and returns it. */
+    static byte[] nonce(int len) {
+        byte[] nonce = NONCE.get();
+        if (nonce.length != len) {
+            nonce = new byte[len];
+            NONCE.set(nonce);
+        }
+        RANDOM.get().nextBytes(nonce);
+        return nonce;
+    }
+}
@@ -0,0 +1,220 @@
+package com.github.toranova;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Unwrapped data keys for the decrypt side, keyed by the base64 ciphertext
+ * blob of the decryption context. Entries expire after a ttl and the
+ * oldest one is evicted once the cache is full. An evicted key is zeroed as
+ * soon as the last caller still using it is done.
+ *
+ * Lookups of cached keys do not lock. Concurrent misses for the same blob
+ * wait on a single load, so a burst of messages after a rotation costs one
+ * kms call instead of one per message.
+ */
+public class DataKeyCache {
+
+    /** Unwraps one data key, e.g. with kms:Decrypt. */
+    public interface Loader {
+        KeyEpoch load(String keyCtB64, String keyId) throws Exception;
+    }
+
+    /** Runs with a key that stays valid until it returns. */
+    public interface KeyFunction<T> {
+        T apply(KeyEpoch epoch) throws Exception;
+    }
+
+    private static final class Entry {
+        final KeyEpoch epoch;
+        final long expiresAt;
+        // one for the cache itself, plus one per caller inside apply
+        final AtomicInteger refs = new AtomicInteger(1);
+
+        Entry(KeyEpoch epoch, long expiresAt) {
+            this.epoch = epoch;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean acquire() {
+            for (;;) {
+                int r = refs.get();
+                if (r == 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(r, r + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                epoch.destroy();
+            }
+        }
+    }
+
+    private final Loader mLoader;
+    private final int mMaxSize;
+    private final long mTtlNanos;
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> mEntries = new ConcurrentHashMap<>();
+
+    private final LongAdder mHits = new LongAdder();
+    private final LongAdder mMisses = new LongAdder();
+
+    /**
+     * @param maxSize   number of keys kept
+     * @param ttlMillis how long a key is kept after it was loaded
+     */
+    public DataKeyCache(Loader loader, int maxSize, long ttlMillis) {
+        if (maxSize <= 0 || ttlMillis <= 0) {
+            throw new IllegalArgumentException("cache size and ttl must be positive");
+        }
+        mLoader = loader;
+        mMaxSize = maxSize;
+        mTtlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Runs fn with the key named by the blob, loading it first if needed.
+     * The key must not be used after fn returns.
+     */
+    public <T> T apply(String keyCtB64, String keyId, KeyFunction<T> fn) throws Exception {
+        Entry e = acquire(keyCtB64, keyId);
+        try {
+            return fn.apply(e.epoch);
+        } finally {
+            e.release();
+        }
+    }
+
+    private Entry acquire(String keyCtB64, String keyId) throws Exception {
+        for (;;) {
+            CompletableFuture<Entry> f = mEntries.get(keyCtB64);
+            if (f == null) {
+                CompletableFuture<Entry> mine = new CompletableFuture<>();
+                f = mEntries.putIfAbsent(keyCtB64, mine);
+                if (f == null) {
+                    load(keyCtB64, keyId, mine);
+                    f = mine;
+                }
+            } else {
+                mHits.increment();
+            }
+
+            Entry e = join(f);
+            if (System.nanoTime() - e.expiresAt >= 0) {
+                retire(keyCtB64, f);
+                continue;
+            }
+            if (e.acquire()) {
+                return e;
+            }
+            // evicted between the lookup and the acquire
+        }
+    }
+
+    private void load(String keyCtB64, String keyId, CompletableFuture<Entry> slot) throws Exception {
+        mMisses.increment();
+        try {
+            KeyEpoch epoch = mLoader.load(keyCtB64, keyId);
+            slot.complete(new Entry(epoch, System.nanoTime() + mTtlNanos));
+        } catch (Throwable e) {
+            // waiters see the same failure, errors too, the next lookup tries again
+            mEntries.remove(keyCtB64, slot);
+            slot.completeExceptionally(e);
+            throw e;
+        }
+        evictExpired();
+        evictOverflow();
+    }
+
+    private static Entry join(CompletableFuture<Entry> f) throws Exception {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof Exception) {
+                throw (Exception) c;
+            }
+            if (c instanceof Error) {
+                throw (Error) c;
+            }
+            throw e;
+        }
+    }
+
+    /*
+     * Keys that are never looked up again would otherwise stay unzeroed
+     * until the cache overflows, so every load sweeps them out.
+     */
+    private void evictExpired() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, CompletableFuture<Entry>> me : mEntries.entrySet()) {
+            Entry e = me.getValue().getNow(null);
+            if (e != null && now - e.expiresAt >= 0) {
+                retire(me.getKey(), me.getValue());
+            }
+        }
+    }
+
+    private void evictOverflow() {
+        while (mEntries.size() > mMaxSize) {
+            String oldest = null;
+            CompletableFuture<Entry> victim = null;
+            long at = 0;
+            for (Map.Entry<String, CompletableFuture<Entry>> me : mEntries.entrySet()) {
+                Entry e = me.getValue().getNow(null);
+                if (e == null) {
+                    continue; // still loading
+                }
+                if (victim == null || e.expiresAt - at < 0) {
+                    oldest = me.getKey();
+                    victim = me.getValue();
+                    at = e.expiresAt;
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+            retire(oldest, victim);
+        }
+    }
+
+    private void retire(String keyCtB64, CompletableFuture<Entry> f) {
+        // only the thread that removes the entry drops the cache reference
+        if (mEntries.remove(keyCtB64, f)) {
+            Entry e = f.getNow(null);
+            if (e != null) {
+                e.release();
+            }
+        }
+    }
+
+    /** Drops every key, keys in use are zeroed once released. */
+    public void clear() {
+        for (Map.Entry<String, CompletableFuture<Entry>> me : mEntries.entrySet()) {
+            if (me.getValue().isDone() && !me.getValue().isCompletedExceptionally()) {
+                retire(me.getKey(), me.getValue());
+            }
+        }
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public long getHits() {
+        return mHits.sum();
+    }
+
+    public long getMisses() {
+        return mMisses.sum();
+    }
+}
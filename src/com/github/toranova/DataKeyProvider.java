@@ -0,0 +1,37 @@
+package com.github.toranova;
+
+import java.io.Closeable;
+
+/**
+ * Source of data keys for the cryptor and the decrypt side. A provider
+ * hands out a fresh plaintext key together with its wrapped form, and
+ * unwraps a wrapped key named in a decryption context.
+ *
+ * @see AWSKMSKeyProvider
+ * @see LocalKeyProvider
+ */
+public interface DataKeyProvider extends Closeable {
+
+    /** A fresh data key, wrapped under keyId. */
+    KeyEpoch generateDataKey(String keyId);
+
+    /**
+     * A fresh data key straight from the source, without what else
+     * generateDataKey does (refilling a pool). For retries, whose rate the
+     * caller controls.
+     */
+    default KeyEpoch fetchDataKey(String keyId) {
+        return generateDataKey(keyId);
+    }
+
+    /** Unwraps the base64 ciphertext of a key from generateDataKey. */
+    KeyEpoch decryptDataKey(String keyCtB64, String keyId);
+
+    /** Remote providers report their call timings here. */
+    default void setMetrics(HashCryptMetrics metrics) {
+    }
+
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.toranova;
+
+import java.util.Base64;
+import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.camel.CamelExchangeException;
+import org.apache.camel.Message;
+import org.apache.camel.Exchange;
+import org.apache.camel.InvalidPayloadException;
+import org.apache.camel.Processor;
+import org.apache.camel.Service;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+
+/**
+ * The reverse of {@link HashCryptField}: restores every configured field
+ * from its _enc companion and drops the companion and aws_enc_ctx. The data
+ * key named by aws_enc_ctx is unwrapped once by the key provider (kms:Decrypt
+ * by default) and then served from a {@link DataKeyCache}.
+ *
+ * The fields use the same syntax as HashCryptField, and the cipher engine
+ * must be the one the messages were encrypted with.
+ */
+public class DecryptField implements Processor, Service {
+
+    private FieldSelector mSelector = null;
+    private DataKeyProvider mProvider = null;
+    // a provider passed in is closed by its owner
+    private boolean mOwnsProvider = false;
+    private volatile DataKeyCache mKeys = null;
+    private int mKeyCacheSize = 100;
+    private long mKeyCacheTtlMs = 300000;
+    private volatile CipherEngine mEngine = new BouncyCastleCbcEngine();
+    private volatile HashCryptMetrics mMetrics = HashCryptMetrics.NOOP;
+    private volatile String mEnvelope = HashCryptField.ENVELOPE_NONE;
+    private volatile EpochRegistry mRegistry = new InMemoryEpochRegistry();
+    // the last aws_enc_ctx header registered, most messages repeat it
+    private volatile String mLastContext = null;
+    // deterministic mode, unwrapped on first use
+    private volatile String mDetContext = null;
+    private volatile DeterministicCipher mDet = null;
+    // not the monitor, the unwrap calls kms and must not hold up the rest
+    private final Object mDetLock = new Object();
+
+    public DecryptField(){
+    }
+
+    public DecryptField(String fields, DataKeyCache keys) {
+        mSelector = new FieldSelector(fields);
+        mKeys = keys;
+    }
+
+    public DecryptField(String fields, DataKeyProvider provider) {
+        mSelector = new FieldSelector(fields);
+        mProvider = provider;
+        mKeys = new DataKeyCache(provider::decryptDataKey, mKeyCacheSize, mKeyCacheTtlMs);
+    }
+
+    public DecryptField(String fields, String accessKey, String secretKey, String proxy) {
+        this(fields, new AWSKMSKeyProvider(new KmsConnection(accessKey, secretKey, proxy), 0));
+        mOwnsProvider = true;
+    }
+
+    public DecryptField(String fields, String accessKey, String secretKey) {
+        this(fields, accessKey, secretKey, null);
+    }
+
+    public DecryptField(String fields) {
+        this(fields, null, null, null);
+    }
+
+    // cache settings apply to a new, empty cache
+
+    public synchronized void setKeyCacheSize(int size) {
+        mKeyCacheSize = size;
+        resetKeyCache();
+    }
+
+    /** How long an unwrapped data key is kept, in milliseconds. */
+    public synchronized void setKeyCacheTtl(long millis) {
+        mKeyCacheTtlMs = millis;
+        resetKeyCache();
+    }
+
+    private void resetKeyCache() {
+        if (mProvider == null) {
+            throw new IllegalStateException("key cache was supplied by the caller");
+        }
+        DataKeyCache old = mKeys;
+        mKeys = new DataKeyCache(mProvider::decryptDataKey, mKeyCacheSize, mKeyCacheTtlMs);
+        old.clear();
+    }
+
+    public DataKeyCache getKeyCache() {
+        return mKeys;
+    }
+
+    public void setCipherEngine(String name) {
+        mEngine = CipherEngines.forName(name);
+    }
+
+    /**
+     * Must match the envelope of the encrypting side. With text or raw the
+     * key is found by the epoch id in each field, and its context comes
+     * from the aws_enc_ctx header or the epoch registry.
+     */
+    public void setEnvelope(String envelope) {
+        if (!HashCryptField.ENVELOPE_NONE.equals(envelope)
+                && !HashCryptField.ENVELOPE_TEXT.equals(envelope)
+                && !HashCryptField.ENVELOPE_RAW.equals(envelope)) {
+            throw new IllegalArgumentException("unknown envelope: " + envelope);
+        }
+        mEnvelope = envelope;
+    }
+
+    /** Defaults to a bounded one that learns contexts from the message headers. */
+    public void setEpochRegistry(EpochRegistry registry) {
+        mRegistry = registry;
+        mLastContext = null;
+    }
+
+    /**
+     * Must match the deterministic key of the encrypting side. The fields
+     * are then decrypted in place, there is no _enc companion or context.
+     */
+    public synchronized void setDeterministicKey(String context) {
+        if (mProvider == null) {
+            throw new IllegalStateException("deterministic mode needs a key provider");
+        }
+        mDetContext = context;
+        resetDeterministic();
+    }
+
+    /* the current cipher with a reference taken, release it after use */
+    private DeterministicCipher acquireDeterministic() {
+        for (;;) {
+            DeterministicCipher d = mDet;
+            if (d == null) {
+                d = unwrapDeterministic();
+            }
+            if (d.acquire()) {
+                return d;
+            }
+            // reset while we looked, the next one is unwrapped
+        }
+    }
+
+    private DeterministicCipher unwrapDeterministic() {
+        synchronized (mDetLock) {
+            if (mDet == null) {
+                mDet = DeterministicCipher.unwrap(mProvider, mDetContext);
+            }
+            return mDet;
+        }
+    }
+
+    private void resetDeterministic() {
+        synchronized (mDetLock) {
+            if (mDet != null) {
+                // zeroed once the callers in flight are done with it
+                DeterministicCipher d = mDet;
+                mDet = null;
+                d.release();
+            }
+        }
+    }
+
+    public void setMetrics(HashCryptMetrics metrics) {
+        mMetrics = metrics != null ? metrics : HashCryptMetrics.NOOP;
+        if (mProvider != null) {
+            mProvider.setMetrics(mMetrics);
+        }
+    }
+
+    public KmsConnection getKmsConnection() {
+        return mProvider instanceof AWSKMSKeyProvider ? ((AWSKMSKeyProvider) mProvider).getKmsConnection() : null;
+    }
+
+    /* the connection settings only apply to the kms key provider */
+    private KmsConnection kms() {
+        KmsConnection kms = getKmsConnection();
+        if (kms == null) {
+            throw new IllegalStateException("connection settings need the kms key provider");
+        }
+        return kms;
+    }
+
+    public void setRegion(String region) {
+        kms().setRegion(region);
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        kms().setMaxConnections(maxConnections);
+    }
+
+    public void setConnectionTimeout(long millis) {
+        kms().setConnectionTimeout(millis);
+    }
+
+    public void setSocketTimeout(long millis) {
+        kms().setSocketTimeout(millis);
+    }
+
+    public void setConnectionAcquisitionTimeout(long millis) {
+        kms().setConnectionAcquisitionTimeout(millis);
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+        // zero the unwrapped keys with the route
+        if (mKeys != null) {
+            mKeys.clear();
+        }
+        resetDeterministic();
+        if (mProvider != null && mOwnsProvider) {
+            mProvider.close();
+        }
+    }
+
+    public void process(Exchange ex) throws Exception {
+        HashCryptMetrics metrics = mMetrics;
+        if (metrics == HashCryptMetrics.NOOP) {
+            doProcess(ex);
+            return;
+        }
+
+        long t0 = System.nanoTime();
+        boolean ok = false;
+        try {
+            doProcess(ex);
+            ok = true;
+        } finally {
+            metrics.recordMessage(System.nanoTime() - t0, ok);
+        }
+    }
+
+    private void doProcess(Exchange ex) throws Exception {
+        Message msg = ex.getMessage();
+        JsonNode jsonb = msg.getBody(JsonNode.class);
+
+        if (jsonb == null) {
+            throw new InvalidPayloadException(ex, JsonNode.class);
+        }
+
+        ObjectNode body = ((ObjectNode) jsonb);
+        JsonNode ctx = body.remove(HashCryptField.CONTEXT_FIELD);
+
+        if (mDetContext != null) {
+            DeterministicCipher d = acquireDeterministic();
+            try {
+                restoreNode(body, mSelector.root(), e -> openDeterministic(d, e));
+            } finally {
+                d.release();
+            }
+            msg.setBody(HashCryptField.toMap(body));
+            return;
+        }
+
+        if (!HashCryptField.ENVELOPE_NONE.equals(mEnvelope)) {
+            // the context comes with the message, or from a shared registry
+            String c = msg.getHeader(HashCryptField.CONTEXT_FIELD, String.class);
+            if (c != null && !c.equals(mLastContext)) {
+                // hashing the context only pays off for a new epoch
+                mRegistry.register(Envelope.epochIdOf(c), c);
+                mLastContext = c;
+            }
+            restoreNode(body, mSelector.root(), this::openEnvelope);
+            msg.setBody(HashCryptField.toMap(body));
+            return;
+        }
+
+        if (ctx == null || !ctx.isTextual()) {
+            throw new CamelExchangeException("message has no " + HashCryptField.CONTEXT_FIELD, ex);
+        }
+
+        // ciphertext:keyid, the key id may be an arn with colons of its own
+        String c = ctx.textValue();
+        int sep = c.indexOf(':');
+        if (sep <= 0) {
+            throw new CamelExchangeException("malformed " + HashCryptField.CONTEXT_FIELD, ex);
+        }
+
+        mKeys.apply(c.substring(0, sep), c.substring(sep + 1), epoch -> {
+            restoreNode(body, mSelector.root(), e -> {
+                byte[] ct = Base64.getDecoder().decode(e.asText());
+                return decrypt(epoch, ct, 0, ct.length);
+            });
+            return null;
+        });
+
+        msg.setBody(HashCryptField.toMap(body));
+    }
+
+    /* turns the value of an _enc field back into plaintext */
+    private interface Opener {
+        String open(JsonNode enc) throws Exception;
+    }
+
+    private String openDeterministic(DeterministicCipher d, JsonNode enc) throws Exception {
+        HashCryptMetrics metrics = mMetrics;
+        long t0 = metrics != HashCryptMetrics.NOOP ? System.nanoTime() : 0;
+
+        String p = d.decryptUTF8(enc.asText());
+        if (metrics != HashCryptMetrics.NOOP) {
+            metrics.recordDecrypt(System.nanoTime() - t0, enc.asText().length());
+        }
+        return p;
+    }
+
+    private String openEnvelope(JsonNode enc) throws Exception {
+        // raw envelopes reach us as binary nodes, or as base64 text after a json hop
+        byte[] env = HashCryptField.ENVELOPE_RAW.equals(mEnvelope) ? enc.binaryValue() : Envelope.fromText(enc.asText());
+        String id = Envelope.idToString(Envelope.readEpochId(env, 0, env.length));
+        String c = mRegistry.lookup(id);
+        if (c == null) {
+            throw new IllegalStateException("unknown key epoch " + id + ", its context was never published or registered");
+        }
+
+        int sep = c.indexOf(':');
+        if (sep <= 0) {
+            throw new IllegalStateException("malformed context for key epoch " + id);
+        }
+        return mKeys.apply(c.substring(0, sep), c.substring(sep + 1),
+            epoch -> decrypt(epoch, env, Envelope.HEADER_LEN, env.length - Envelope.HEADER_LEN));
+    }
+
+    private void restoreNode(JsonNode node, FieldSelector.Node sel, Opener opener) throws Exception {
+        if (node.isObject()) {
+            ObjectNode obj = (ObjectNode) node;
+            for (Map.Entry<String, FieldSelector.Node> c : sel.children.entrySet()) {
+                if (c.getValue().terminal) {
+                    restoreField(obj, c.getKey(), opener);
+                    continue;
+                }
+                JsonNode f = obj.get(c.getKey());
+                if (f != null) {
+                    restoreNode(f, c.getValue(), opener);
+                }
+            }
+        } else if (node.isArray()) {
+            for (int i = 0; i < node.size(); i++) {
+                FieldSelector.Node el = sel.element(i);
+                if (el != null) {
+                    restoreNode(node.get(i), el, opener);
+                }
+            }
+        }
+    }
+
+    private void restoreField(ObjectNode body, String s, Opener opener) throws Exception {
+        // deterministic values are decrypted in place
+        JsonNode e = mDetContext != null ? body.get(s) : body.remove(s + "_enc");
+        if (e == null) {
+            return;
+        }
+
+        // empty text and empty binary alike
+        body.put(s, e.asText().isEmpty() ? "" : opener.open(e));
+    }
+
+    private String decrypt(KeyEpoch epoch, byte[] ct, int off, int len) throws InvalidCipherTextException {
+        HashCryptMetrics metrics = mMetrics;
+        long t0 = metrics != HashCryptMetrics.NOOP ? System.nanoTime() : 0;
+
+        CipherEngine eng = mEngine;
+        byte[] buf = new byte[eng.getDecryptedSize(len)];
+        int n = eng.decrypt(epoch, ct, off, len, buf, 0);
+        String p = new String(buf, 0, n, StandardCharsets.UTF_8);
+        if (metrics != HashCryptMetrics.NOOP) {
+            metrics.recordDecrypt(System.nanoTime() - t0, len);
+        }
+        return p;
+    }
+}
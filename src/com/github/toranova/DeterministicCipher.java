@@ -0,0 +1,104 @@
+package com.github.toranova;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
+import org.bouncycastle.crypto.params.HKDFParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * Deterministic AES-GCM-SIV: equal plaintexts give equal ciphertexts, so
+ * one value is both joinable and decryptable. The AES key and the nonce are
+ * derived with HKDF-SHA256 from a single data key that stays the same across
+ * rotations. GCM-SIV stays secure under the fixed nonce, it only reveals
+ * which values are equal, which is what the hash revealed before.
+ *
+ * Wire format: ciphertext || tag(16), base64. The nonce is not sent.
+ *
+ * The holder owns one reference and drops it with {@link #release()};
+ * callers take their own around use, the key is zeroed after the last.
+ */
+public final class DeterministicCipher {
+
+    private static final byte[] INFO = "hashcrypt deterministic v1".getBytes(StandardCharsets.US_ASCII);
+    private static final int KEY_LEN = 32;
+
+    private final KeyEpoch mKey;
+    private final byte[] mNonce = new byte[GcmSivEngine.NONCE_LEN];
+    private final GcmSivEngine mEngine = new GcmSivEngine();
+    // one for the holder, plus one per caller in flight
+    private final AtomicInteger mRefs = new AtomicInteger(1);
+
+    /** Derives from root, which is zeroed afterwards. */
+    DeterministicCipher(KeyEpoch root) {
+        byte[] okm = new byte[KEY_LEN + GcmSivEngine.NONCE_LEN];
+        HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
+        hkdf.init(new HKDFParameters(root.getKeyParameter().getKey(), null, INFO));
+        hkdf.generateBytes(okm, 0, okm.length);
+
+        mKey = new KeyEpoch(new KeyParameter(Arrays.copyOf(okm, KEY_LEN)), root.getKeyCiphertext(), root.getKeyId());
+        System.arraycopy(okm, KEY_LEN, mNonce, 0, mNonce.length);
+        Arrays.fill(okm, (byte) 0);
+        root.destroy();
+    }
+
+    /**
+     * Unwraps the data key named by context (ciphertext:keyid, the format of
+     * aws_enc_ctx) with the provider and derives from it.
+     */
+    static DeterministicCipher unwrap(DataKeyProvider provider, String context) {
+        int sep = context.indexOf(':');
+        if (sep <= 0) {
+            throw new IllegalArgumentException("malformed deterministic key, expected ciphertext:keyid");
+        }
+        return new DeterministicCipher(provider.decryptDataKey(context.substring(0, sep), context.substring(sep + 1)));
+    }
+
+    public byte[] encrypt(byte[] in) throws InvalidCipherTextException {
+        byte[] out = new byte[in.length + GcmSivEngine.TAG_LEN];
+        mEngine.seal(mKey, mNonce, in, 0, in.length, out, 0);
+        return out;
+    }
+
+    public byte[] decrypt(byte[] in) throws InvalidCipherTextException {
+        if (in.length < GcmSivEngine.TAG_LEN) {
+            throw new InvalidCipherTextException("ciphertext shorter than tag");
+        }
+        byte[] out = new byte[in.length - GcmSivEngine.TAG_LEN];
+        int n = mEngine.open(mKey, mNonce, in, 0, in.length, out, 0);
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    public String encryptUTF8(String plaintext) throws InvalidCipherTextException {
+        return Base64.getEncoder().encodeToString(encrypt(plaintext.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public String decryptUTF8(String ciphertext) throws InvalidCipherTextException {
+        return new String(decrypt(Base64.getDecoder().decode(ciphertext)), StandardCharsets.UTF_8);
+    }
+
+    /** False once the key is zeroed, the holder has a new one by then. */
+    boolean acquire() {
+        for (;;) {
+            int r = mRefs.get();
+            if (r == 0) {
+                return false;
+            }
+            if (mRefs.compareAndSet(r, r + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        if (mRefs.decrementAndGet() == 0) {
+            mKey.destroy();
+            Arrays.fill(mNonce, (byte) 0);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.github.toranova;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Table driven hex and base64 (rfc 4648, padded) encoders that write
+ * straight into a caller supplied buffer, so hot paths can skip the
+ * intermediate arrays of String.format and java.util.Base64.
+ */
+public final class Encoders {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] B64 =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+    private static final int[] B64_INV = new int[256];
+
+    static {
+        java.util.Arrays.fill(B64_INV, -1);
+        for (int i = 0; i < B64.length; i++) {
+            B64_INV[B64[i]] = i;
+        }
+    }
+
+    private Encoders() {
+    }
+
+    public static int hexLength(int len) {
+        return len * 2;
+    }
+
+    public static int base64Length(int len) {
+        return (len + 2) / 3 * 4;
+    }
+
+    /** Writes len bytes of src as lower case hex into dst, returns the bytes written. */
+    public static int encodeHex(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        for (int i = 0; i < len; i++) {
+            int b = src[off + i] & 0xff;
+            dst[dstOff++] = HEX[b >>> 4];
+            dst[dstOff++] = HEX[b & 0x0f];
+        }
+        return len * 2;
+    }
+
+    public static int encodeHex(byte[] src, int off, int len, ByteBuffer dst) {
+        int n = hexLength(len);
+        if (dst.remaining() < n) {
+            throw new BufferOverflowException();
+        }
+        if (dst.hasArray()) {
+            encodeHex(src, off, len, dst.array(), dst.arrayOffset() + dst.position());
+            dst.position(dst.position() + n);
+        } else {
+            for (int i = 0; i < len; i++) {
+                int b = src[off + i] & 0xff;
+                dst.put(HEX[b >>> 4]);
+                dst.put(HEX[b & 0x0f]);
+            }
+        }
+        return n;
+    }
+
+    /** Writes len bytes of src as padded base64 into dst, returns the bytes written. */
+    public static int encodeBase64(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        int start = dstOff;
+        int end = off + len - len % 3;
+        for (int i = off; i < end; i += 3) {
+            int v = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff);
+            dst[dstOff++] = B64[v >>> 18];
+            dst[dstOff++] = B64[(v >>> 12) & 0x3f];
+            dst[dstOff++] = B64[(v >>> 6) & 0x3f];
+            dst[dstOff++] = B64[v & 0x3f];
+        }
+        int rest = len % 3;
+        if (rest > 0) {
+            int v = (src[end] & 0xff) << 16 | (rest == 2 ? (src[end + 1] & 0xff) << 8 : 0);
+            dst[dstOff++] = B64[v >>> 18];
+            dst[dstOff++] = B64[(v >>> 12) & 0x3f];
+            dst[dstOff++] = rest == 2 ? B64[(v >>> 6) & 0x3f] : (byte) '=';
+            dst[dstOff++] = (byte) '=';
+        }
+        return dstOff - start;
+    }
+
+    public static int encodeBase64(byte[] src, int off, int len, ByteBuffer dst) {
+        int n = base64Length(len);
+        if (dst.remaining() < n) {
+            throw new BufferOverflowException();
+        }
+        if (dst.hasArray()) {
+            encodeBase64(src, off, len, dst.array(), dst.arrayOffset() + dst.position());
+        } else {
+            encodeBase64Direct(src, off, len, dst, dst.position());
+        }
+        dst.position(dst.position() + n);
+        return n;
+    }
+
+    /* encodeBase64 with absolute puts, for direct buffers */
+    private static void encodeBase64Direct(byte[] src, int off, int len, ByteBuffer dst, int at) {
+        int end = off + len - len % 3;
+        for (int i = off; i < end; i += 3) {
+            int v = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff);
+            dst.put(at++, B64[v >>> 18]);
+            dst.put(at++, B64[(v >>> 12) & 0x3f]);
+            dst.put(at++, B64[(v >>> 6) & 0x3f]);
+            dst.put(at++, B64[v & 0x3f]);
+        }
+        int rest = len % 3;
+        if (rest > 0) {
+            int v = (src[end] & 0xff) << 16 | (rest == 2 ? (src[end + 1] & 0xff) << 8 : 0);
+            dst.put(at++, B64[v >>> 18]);
+            dst.put(at++, B64[(v >>> 12) & 0x3f]);
+            dst.put(at++, rest == 2 ? B64[(v >>> 6) & 0x3f] : (byte) '=');
+            dst.put(at, (byte) '=');
+        }
+    }
+
+    /**
+     * Decodes padded base64 from src (position to limit) into dst, returns
+     * the decoded length. Consumes src.
+     */
+    public static int decodeBase64(ByteBuffer src, byte[] dst, int dstOff) {
+        int start = dstOff;
+        int acc = 0;
+        int bits = 0;
+        while (src.hasRemaining()) {
+            int c = src.get() & 0xff;
+            if (c == '=') {
+                src.position(src.limit());
+                break;
+            }
+            int v = B64_INV[c];
+            if (v < 0) {
+                throw new IllegalArgumentException("illegal base64 character: " + (char) c);
+            }
+            acc = acc << 6 | v;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                dst[dstOff++] = (byte) (acc >>> bits);
+            }
+        }
+        return dstOff - start;
+    }
+
+    public static int decodedBase64Length(int len) {
+        return len / 4 * 3 + 2;
+    }
+
+    public static String toHex(byte[] src) {
+        byte[] out = new byte[hexLength(src.length)];
+        encodeHex(src, 0, src.length, out, 0);
+        return new String(out, StandardCharsets.ISO_8859_1);
+    }
+
+    public static String toBase64(byte[] src, int off, int len) {
+        byte[] out = new byte[base64Length(len)];
+        encodeBase64(src, off, len, out, 0);
+        return new String(out, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.toranova;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * The compact ciphertext format, opt in through the envelope property of
+ * the processors:
+ * <pre>
+ *   version (1) | epoch id (8, big endian) | cipher engine output
+ * </pre>
+ * The epoch id is the first 8 bytes of the sha-256 of the wrapped data
+ * key, so the full decryption context only has to travel once per epoch,
+ * see {@link EpochRegistry}. As text the envelope is unpadded base64url.
+ */
+public final class Envelope {
+
+    public static final byte VERSION = 1;
+    public static final int HEADER_LEN = 9;
+
+    private static final Base64.Encoder TEXT_ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder TEXT_DECODER = Base64.getUrlDecoder();
+
+    private Envelope() {
+    }
+
+    /** The epoch id of a wrapped data key, as in a decryption context. */
+    public static long epochId(String keyCtB64) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest(Base64.getDecoder().decode(keyCtB64));
+            long id = 0;
+            for (int i = 0; i < 8; i++) {
+                id = id << 8 | (d[i] & 0xff);
+            }
+            return id;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** The epoch id of a full decryption context (ciphertext:keyid). */
+    public static String epochIdOf(String context) {
+        int sep = context.indexOf(':');
+        return idToString(epochId(sep < 0 ? context : context.substring(0, sep)));
+    }
+
+    public static String idToString(long id) {
+        return String.format("%016x", id);
+    }
+
+    static void writeHeader(byte[] out, int off, long id) {
+        out[off] = VERSION;
+        for (int i = 8; i > 0; i--) {
+            out[off + i] = (byte) id;
+            id >>>= 8;
+        }
+    }
+
+    /** Reads the epoch id of an envelope, checking its version. */
+    public static long readEpochId(byte[] env, int off, int len) {
+        if (len < HEADER_LEN || env[off] != VERSION) {
+            throw new IllegalArgumentException("not a version " + VERSION + " envelope");
+        }
+        long id = 0;
+        for (int i = 1; i < HEADER_LEN; i++) {
+            id = id << 8 | (env[off + i] & 0xff);
+        }
+        return id;
+    }
+
+    public static String toText(byte[] env) {
+        return TEXT_ENCODER.encodeToString(env);
+    }
+
+    public static byte[] fromText(String text) {
+        return TEXT_DECODER.decode(text);
+    }
+}
@@ -0,0 +1,17 @@
+package com.github.toranova;
+
+/**
+ * Maps the short epoch id of an {@link Envelope} to the full decryption
+ * context. The encrypting side registers every epoch once, before the
+ * first message that uses it is sent; the decrypting side looks it up.
+ * A shared implementation (a compacted topic, a table) lets any consumer
+ * decrypt any message; {@link InMemoryEpochRegistry} only knows what this
+ * process has seen.
+ */
+public interface EpochRegistry {
+
+    void register(String epochId, String context);
+
+    /** The context of epochId, null if unknown. */
+    String lookup(String epochId);
+}
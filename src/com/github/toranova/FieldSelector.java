@@ -0,0 +1,180 @@
+package com.github.toranova;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The configured field paths compiled into a trie, so a document is walked
+ * once however many fields are selected. Paths are comma separated and use
+ * either dots or json pointers:
+ *
+ *   nric, address.postcode, items[*].nric, /contacts/0/phone, /a.b
+ *
+ * A * (or [*]) steps into every element of an array, a number (or [n]) into
+ * one element. The last step must name an object field, that field is
+ * replaced by its hash and gets an _enc sibling. Plain names select top
+ * level fields as before.
+ */
+final class FieldSelector {
+
+    static final String WILDCARD = "*";
+
+    static final class Node {
+        // in configured order, the tree mode writes the fields in this order
+        final Map<String, Node> children = new LinkedHashMap<>();
+        // array steps, either every element or by index
+        Node wildcard;
+        final Map<Integer, Node> indices = new LinkedHashMap<>();
+        // this node is a selected field
+        boolean terminal;
+        // _enc names of the selected children, replaced on output
+        final Set<String> encNames = new LinkedHashSet<>();
+
+        boolean hasChildren() {
+            return !children.isEmpty() || wildcard != null || !indices.isEmpty();
+        }
+
+        /* an index node also holds everything under the wildcard, see resolve */
+        Node element(int idx) {
+            Node n = indices.get(idx);
+            return n != null ? n : wildcard;
+        }
+    }
+
+    private final Node mRoot = new Node();
+    private final int mCount;
+
+    FieldSelector(String fields) {
+        String[] paths = fields.split(" *, *");
+        int count = 0;
+        for (String path : paths) {
+            path = path.trim();
+            if (path.isEmpty()) {
+                continue;
+            }
+            add(path, parse(path));
+            count++;
+        }
+        mCount = count;
+        resolve(mRoot);
+    }
+
+    Node root() {
+        return mRoot;
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    private void add(String path, List<String> steps) {
+        String last = steps.get(steps.size() - 1);
+        if (last.equals(WILDCARD) || (steps.size() > 1 && isIndex(last))) {
+            throw new IllegalArgumentException("field path must end with a field name: " + path);
+        }
+
+        Node n = mRoot;
+        for (int i = 0; i < steps.size(); i++) {
+            String s = steps.get(i);
+            if (s.equals(WILDCARD)) {
+                if (n.wildcard == null) {
+                    n.wildcard = new Node();
+                }
+                n = n.wildcard;
+            } else if (isIndex(s) && i > 0) {
+                n = n.indices.computeIfAbsent(Integer.parseInt(s), k -> new Node());
+            } else {
+                if (i == steps.size() - 1) {
+                    n.encNames.add(s + "_enc");
+                }
+                n = n.children.computeIfAbsent(s, k -> new Node());
+            }
+        }
+        n.terminal = true;
+    }
+
+    /*
+     * Copies the wildcard branch into every index branch next to it, so that
+     * items[*].a, items[0].b selects both a and b of the first element.
+     */
+    private static void resolve(Node n) {
+        if (n.wildcard != null) {
+            for (Node idx : n.indices.values()) {
+                merge(idx, n.wildcard);
+            }
+            resolve(n.wildcard);
+        }
+        for (Node c : n.children.values()) {
+            resolve(c);
+        }
+        for (Node idx : n.indices.values()) {
+            resolve(idx);
+        }
+    }
+
+    private static void merge(Node into, Node from) {
+        into.terminal |= from.terminal;
+        into.encNames.addAll(from.encNames);
+        for (Map.Entry<String, Node> c : from.children.entrySet()) {
+            merge(into.children.computeIfAbsent(c.getKey(), k -> new Node()), c.getValue());
+        }
+        if (from.wildcard != null) {
+            if (into.wildcard == null) {
+                into.wildcard = new Node();
+            }
+            merge(into.wildcard, from.wildcard);
+        }
+        for (Map.Entry<Integer, Node> c : from.indices.entrySet()) {
+            merge(into.indices.computeIfAbsent(c.getKey(), k -> new Node()), c.getValue());
+        }
+    }
+
+    private static boolean isIndex(String s) {
+        if (s.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isDigit(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static List<String> parse(String path) {
+        List<String> steps = new ArrayList<>();
+        if (path.startsWith("/")) {
+            // json pointer, ~1 is / and ~0 is ~
+            for (String s : path.substring(1).split("/", -1)) {
+                steps.add(s.replace("~1", "/").replace("~0", "~"));
+            }
+            return steps;
+        }
+
+        for (String s : path.split("\\.", -1)) {
+            // name[*][0] style array steps
+            int b = s.indexOf('[');
+            String name = b < 0 ? s : s.substring(0, b);
+            if (!name.isEmpty()) {
+                steps.add(name);
+            }
+            while (b >= 0) {
+                int e = s.indexOf(']', b);
+                if (e < 0) {
+                    throw new IllegalArgumentException("unterminated [ in field path: " + path);
+                }
+                steps.add(s.substring(b + 1, e).trim());
+                b = s.indexOf('[', e);
+            }
+        }
+
+        if (steps.isEmpty()) {
+            throw new IllegalArgumentException("empty field path: " + path);
+        }
+        return steps;
+    }
+}
@@ -0,0 +1,67 @@
+package com.github.toranova;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.GCMSIVBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+
+/**
+ * nonce(12) || AES-GCM-SIV(plaintext) || tag(16). Authenticated, and nonce
+ * misuse resistant: a repeated nonce only reveals that two plaintexts are
+ * equal.
+ */
+public class GcmSivEngine implements CipherEngine {
+
+    static final int NONCE_LEN = 12;
+    static final int TAG_LEN = 16;
+
+    private static final ThreadLocal<GCMSIVBlockCipher> CIPHER = ThreadLocal.withInitial(
+            () -> new GCMSIVBlockCipher(new AESEngine())
+    );
+
+    @Override
+    public String getName() {
+        return CipherEngines.BC_GCM_SIV;
+    }
+
+    @Override
+    public int getEncryptedSize(int len) {
+        return NONCE_LEN + len + TAG_LEN;
+    }
+
+    @Override
+    public int getDecryptedSize(int len) {
+        return Math.max(len - NONCE_LEN - TAG_LEN, 0);
+    }
+
+    @Override
+    public int encrypt(KeyEpoch key, byte[] in, int inOff, int inLen, byte[] out, int outOff) throws InvalidCipherTextException {
+        byte[] nonce = CipherEngines.nonce(NONCE_LEN);
+        System.arraycopy(nonce, 0, out, outOff, NONCE_LEN);
+        return NONCE_LEN + seal(key, nonce, in, inOff, inLen, out, outOff + NONCE_LEN);
+    }
+
+    @Override
+    public int decrypt(KeyEpoch key, byte[] in, int inOff, int inLen, byte[] out, int outOff) throws InvalidCipherTextException {
+        if (inLen < NONCE_LEN + TAG_LEN) {
+            throw new InvalidCipherTextException("ciphertext shorter than nonce and tag");
+        }
+        byte[] nonce = new byte[NONCE_LEN];
+        System.arraycopy(in, inOff, nonce, 0, NONCE_LEN);
+        return open(key, nonce, in, inOff + NONCE_LEN, inLen - NONCE_LEN, out, outOff);
+    }
+
+    int seal(KeyEpoch key, byte[] nonce, byte[] in, int inOff, int inLen, byte[] out, int outOff) throws InvalidCipherTextException {
+        GCMSIVBlockCipher cip = CIPHER.get();
+        cip.init(true, new AEADParameters(key.getKeyParameter(), TAG_LEN * 8, nonce));
+        int n = cip.processBytes(in, inOff, inLen, out, outOff);
+        return n + cip.doFinal(out, outOff + n);
+    }
+
+    int open(KeyEpoch key, byte[] nonce, byte[] in, int inOff, int inLen, byte[] out, int outOff) throws InvalidCipherTextException {
+        GCMSIVBlockCipher cip = CIPHER.get();
+        cip.init(false, new AEADParameters(key.getKeyParameter(), TAG_LEN * 8, nonce));
+        int n = cip.processBytes(in, inOff, inLen, out, outOff);
+        return n + cip.doFinal(out, outOff + n);
+    }
+}
@@ -0,0 +1,200 @@
+package com.github.toranova;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache from hash input to its hex digest, for streams that repeat
+ * the same identifiers. The cache is set associative: an input maps to one
+ * bucket of a few ways, and a full bucket evicts its least frequently used
+ * way (counters are halved when one saturates, so old favourites age out).
+ *
+ * Inputs are plaintext, so they are kept off the java heap in one direct
+ * buffer and overwritten with zeros when evicted or cleared. Only the hash
+ * of the input is kept on the heap to pick the bucket. Inputs longer than
+ * the slot size are not cached.
+ */
+public class HashCache {
+
+    private static final int WAYS = 4;
+    private static final int MAX_FREQ = 15;
+
+    private final int mSlotLen;
+    private final int mBuckets;
+    private final ByteBuffer mKeys;
+    private final int[] mKeyLen;
+    private final int[] mKeyHash;
+    private final byte[] mFreq;
+    private final String[] mValues;
+    private final Object[] mLocks;
+
+    private final LongAdder mHits = new LongAdder();
+    private final LongAdder mMisses = new LongAdder();
+
+    /**
+     * @param size   number of entries, rounded up to a multiple of 4
+     * @param slotLen longest input that is cached, in bytes
+     */
+    public HashCache(int size, int slotLen) {
+        if (size <= 0 || slotLen <= 0) {
+            throw new IllegalArgumentException("cache size and slot length must be positive");
+        }
+        mSlotLen = slotLen;
+        mBuckets = (size + WAYS - 1) / WAYS;
+        int slots = mBuckets * WAYS;
+        mKeys = ByteBuffer.allocateDirect(slots * slotLen);
+        mKeyLen = new int[slots];
+        mKeyHash = new int[slots];
+        mFreq = new byte[slots];
+        mValues = new String[slots];
+        mLocks = new Object[mBuckets];
+        for (int i = 0; i < mBuckets; i++) {
+            mLocks[i] = new Object();
+        }
+    }
+
+    public HashCache(int size) {
+        this(size, 64);
+    }
+
+    /**
+     * Returns the cached digest of buf, or null. Counts a hit or a miss.
+     */
+    public String get(byte[] buf) {
+        return get(buf, 0, buf.length);
+    }
+
+    public String get(byte[] buf, int off, int len) {
+        if (len > mSlotLen) {
+            mMisses.increment();
+            return null;
+        }
+
+        int h = hash(buf, off, len);
+        int b = bucket(h);
+        synchronized (mLocks[b]) {
+            for (int s = b * WAYS; s < (b + 1) * WAYS; s++) {
+                if (mValues[s] != null && mKeyHash[s] == h && matches(s, buf, off, len)) {
+                    touch(b, s);
+                    mHits.increment();
+                    return mValues[s];
+                }
+            }
+        }
+        mMisses.increment();
+        return null;
+    }
+
+    public void put(byte[] buf, String digest) {
+        put(buf, 0, buf.length, digest);
+    }
+
+    public void put(byte[] buf, int off, int len, String digest) {
+        if (len > mSlotLen || digest == null) {
+            return;
+        }
+
+        int h = hash(buf, off, len);
+        int b = bucket(h);
+        synchronized (mLocks[b]) {
+            int victim = -1;
+            for (int s = b * WAYS; s < (b + 1) * WAYS; s++) {
+                if (mValues[s] == null) {
+                    victim = s;
+                    break;
+                }
+                if (mKeyHash[s] == h && matches(s, buf, off, len)) {
+                    return; // another thread got here first
+                }
+                if (victim < 0 || mFreq[s] < mFreq[victim]) {
+                    victim = s;
+                }
+            }
+
+            zero(victim);
+            for (int i = 0; i < len; i++) {
+                mKeys.put(victim * mSlotLen + i, buf[off + i]);
+            }
+            mKeyLen[victim] = len;
+            mKeyHash[victim] = h;
+            mFreq[victim] = 1;
+            mValues[victim] = digest;
+        }
+    }
+
+    /** Drops every entry and zeros the stored inputs. */
+    public void clear() {
+        for (int b = 0; b < mBuckets; b++) {
+            synchronized (mLocks[b]) {
+                for (int s = b * WAYS; s < (b + 1) * WAYS; s++) {
+                    zero(s);
+                }
+            }
+        }
+    }
+
+    public long getHits() {
+        return mHits.sum();
+    }
+
+    public long getMisses() {
+        return mMisses.sum();
+    }
+
+    public int getCapacity() {
+        return mBuckets * WAYS;
+    }
+
+    private void touch(int b, int s) {
+        if (mFreq[s] < MAX_FREQ) {
+            mFreq[s]++;
+            return;
+        }
+        // age the bucket so stale favourites can be evicted
+        for (int i = b * WAYS; i < (b + 1) * WAYS; i++) {
+            mFreq[i] = (byte) (mFreq[i] >> 1);
+        }
+        mFreq[s]++;
+    }
+
+    private boolean matches(int s, byte[] buf, int off, int len) {
+        if (mKeyLen[s] != len) {
+            return false;
+        }
+        int base = s * mSlotLen;
+        for (int i = 0; i < len; i++) {
+            if (mKeys.get(base + i) != buf[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void zero(int s) {
+        int base = s * mSlotLen;
+        for (int i = 0; i < mKeyLen[s]; i++) {
+            mKeys.put(base + i, (byte) 0);
+        }
+        mKeyLen[s] = 0;
+        mKeyHash[s] = 0;
+        mFreq[s] = 0;
+        mValues[s] = null;
+    }
+
+    private int bucket(int h) {
+        return (h & 0x7fffffff) % mBuckets;
+    }
+
+    private static int hash(byte[] buf, int off, int len) {
+        // fnv-1a with a final mix, only used to pick a bucket
+        int h = 0x811c9dc5;
+        for (int i = off; i < off + len; i++) {
+            h ^= buf[i];
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+}
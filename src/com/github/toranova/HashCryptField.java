@@ -16,49 +16,444 @@
  */
 package com.github.toranova;
 
-import java.util.Base64;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.nio.charset.StandardCharsets;
+import com.fasterxml.jackson.core.FormatSchema;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.avro.AvroFactory;
+import com.fasterxml.jackson.dataformat.avro.AvroSchema;
+import com.fasterxml.jackson.dataformat.protobuf.ProtobufFactory;
+import com.fasterxml.jackson.dataformat.protobuf.schema.ProtobufSchemaLoader;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
 import org.apache.camel.Message;
 import org.apache.camel.Exchange;
 import org.apache.camel.InvalidPayloadException;
 import org.apache.camel.Processor;
+import org.apache.camel.Service;
 
-public class HashCryptField implements Processor {
+public class HashCryptField implements Processor, Service {
+
+    static final String CONTEXT_FIELD = "aws_enc_ctx";
+
+    public static final String FORMAT_JSON = "json";
+    public static final String FORMAT_AVRO = "avro";
+    public static final String FORMAT_PROTOBUF = "protobuf";
+
+    public static final String ENVELOPE_NONE = "none";
+    public static final String ENVELOPE_TEXT = "text";
+    public static final String ENVELOPE_RAW = "raw";
+    // short id of the epoch, on every message in envelope mode
+    public static final String EPOCH_HEADER = "aws_enc_epoch";
+
+    // shared, ObjectMapper is thread safe once configured
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final TypeReference<Map<Object, Object>> MAP_TYPE = new TypeReference<Map<Object, Object>>(){};
 
     private AWSKMSHashcryptor m = null;
-    private String[] mFields = null;
+    // a cryptor passed in is closed by its owner
+    private boolean mOwnsCryptor = true;
+    private FieldSelector mSelector = null;
+    private boolean mStreaming = false;
+    private String mFormat = FORMAT_JSON;
+    private String mSchemaText = null;
+    private String mInputSchemaText = null;
+    // built from the two above once both are known
+    private volatile JsonFactory mFactory = MAPPER.getFactory();
+    private volatile FormatSchema mSchema = null;
+    // what byte[] and stream bodies are read with, mSchema unless set
+    private volatile FormatSchema mInputSchema = null;
+    private volatile String mEnvelope = ENVELOPE_NONE;
+    private volatile EpochRegistry mRegistry = null;
+    // the last epoch whose context went out with a message
+    private final AtomicReference<KeyEpoch> mPublished = new AtomicReference<>();
+    private volatile HashCryptMetrics mMetrics = HashCryptMetrics.NOOP;
+    private long mStartupTimeout = 30000;
+    // arrays of at least this many elements are split across mPool, 0 is off
+    private volatile int mParallelThreshold = 0;
+    private int mParallelism = Runtime.getRuntime().availableProcessors();
+    private ForkJoinPool mPool = null;
 
     public HashCryptField(){
     }
 
+    public HashCryptField(String fields, AWSKMSHashcryptor cryptor) {
+        initFields(fields);
+        m = cryptor;
+        mOwnsCryptor = false;
+    }
+
     public HashCryptField(String fields, String accessKey, String secretKey, String keyId, String hashAlgo, String hashSalt, int rotationPeriod, String proxy) throws Exception {
         //System.out.printf("FIELDS: %s\n", fields);
-        mFields = fields.split(" *, *");
+        initFields(fields);
         m = new AWSKMSHashcryptor(accessKey, secretKey, keyId, hashAlgo, hashSalt, (int)(rotationPeriod * 2), proxy);
     }
 
+    /**
+     * With lazy set the bean is created without calling kms, the first data
+     * key is fetched in the background and start() waits for it.
+     */
+    public HashCryptField(String fields, String accessKey, String secretKey, String keyId, String hashAlgo, String hashSalt, int rotationPeriod, String proxy, boolean lazy) throws Exception {
+        initFields(fields);
+        m = new AWSKMSHashcryptor(accessKey, secretKey, keyId, hashAlgo, hashSalt, (int)(rotationPeriod * 2), proxy, lazy);
+    }
+
     public HashCryptField(String fields, String accessKey, String secretKey, String keyId, String hashAlgo, String hashSalt, int rotationPeriod) throws Exception {
         //System.out.printf("FIELDS: %s\n", fields);
-        mFields = fields.split(" *, *");
+        initFields(fields);
         m = new AWSKMSHashcryptor(accessKey, secretKey, keyId, hashAlgo, hashSalt, (int)(rotationPeriod * 2));
     }
 
+    public HashCryptField(String fields, DataKeyProvider provider, String keyId, String hashAlgo, String hashSalt, int rotationPeriod) throws Exception {
+        initFields(fields);
+        m = new AWSKMSHashcryptor(provider, keyId, hashAlgo, hashSalt, (int)(rotationPeriod * 2));
+    }
+
+    public HashCryptField(String fields, DataKeyProvider provider, String keyId, String hashAlgo, String hashSalt, int rotationPeriod, boolean lazy) throws Exception {
+        initFields(fields);
+        m = new AWSKMSHashcryptor(provider, keyId, hashAlgo, hashSalt, (int)(rotationPeriod * 2), lazy);
+    }
+
     public HashCryptField(String fields, String keyId, String hashAlgo, String hashSalt, int rotationPeriod) throws Exception {
         //System.out.printf("FIELDS: %s\n", fields);
-        mFields = fields.split(" *, *");
+        initFields(fields);
         m = new AWSKMSHashcryptor(keyId, hashAlgo, hashSalt, (int)(rotationPeriod * 2));
     }
 
+    public HashCryptField(String fields, String keyId, String hashAlgo, String hashSalt, int rotationPeriod, boolean lazy) throws Exception {
+        initFields(fields);
+        m = new AWSKMSHashcryptor(keyId, hashAlgo, hashSalt, (int)(rotationPeriod * 2), lazy);
+    }
+
+    private void initFields(String fields) {
+        // compiled once, see FieldSelector for the path syntax
+        mSelector = new FieldSelector(fields);
+    }
+
+    /**
+     * Reads the body as raw json bytes and rewrites it in a single pass,
+     * the result is written back as a byte[] instead of a Map.
+     */
+    public void setStreaming(boolean streaming) {
+        mStreaming = streaming;
+    }
+
+    public boolean isStreaming() {
+        return mStreaming;
+    }
+
+    /**
+     * Body format for byte[] and stream bodies: json (default), avro or
+     * protobuf. avro and protobuf bodies are rewritten in a single pass with
+     * the schema, without a json tree in between. An avro GenericRecord body
+     * is always rewritten in place, whatever the format.
+     */
+    public synchronized void setFormat(String format) {
+        if (!FORMAT_JSON.equals(format) && !FORMAT_AVRO.equals(format) && !FORMAT_PROTOBUF.equals(format)) {
+            throw new IllegalArgumentException("unknown format: " + format);
+        }
+        mFormat = format;
+        initFormat();
+    }
+
+    public String getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * The avro schema (json) or the .proto source the body is written with.
+     * Every selected field must be a string in it, as it is written back as
+     * its hash, next to a field_enc (string, bytes for the raw envelope) and
+     * a string aws_enc_ctx at the root, unless the mode leaves them out.
+     * Bodies are read with it too, unless an input schema is set.
+     */
+    public synchronized void setSchema(String schema) {
+        mSchemaText = schema;
+        initFormat();
+    }
+
+    /**
+     * The schema the incoming bodies were written with, e.g. the one of the
+     * producer topic, when it lacks the _enc fields and aws_enc_ctx of the
+     * output schema. Fields are matched by name.
+     */
+    public synchronized void setInputSchema(String schema) {
+        mInputSchemaText = schema;
+        initFormat();
+    }
+
+    private void initFormat() {
+        if (FORMAT_JSON.equals(mFormat)) {
+            mFactory = MAPPER.getFactory();
+            mSchema = null;
+            mInputSchema = null;
+            return;
+        }
+        if (mSchemaText == null) {
+            return; // waiting for setSchema
+        }
+        FormatSchema out = parseSchema(mSchemaText);
+        FormatSchema in = mInputSchemaText != null ? parseSchema(mInputSchemaText) : out;
+        // only what the schema alone decides, the mode is checked in start()
+        if (mSelector != null) {
+            SchemaCheck.check(out, mSelector, SchemaCheck.ENC_ANY, false, false);
+        }
+
+        mFactory = FORMAT_AVRO.equals(mFormat) ? new AvroFactory() : new ProtobufFactory();
+        mInputSchema = in;
+        mSchema = out;
+    }
+
+    private FormatSchema parseSchema(String text) {
+        try {
+            if (FORMAT_AVRO.equals(mFormat)) {
+                return new AvroSchema(new Schema.Parser().parse(text));
+            }
+            return ProtobufSchemaLoader.std.parse(text);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("invalid " + mFormat + " schema", e);
+        }
+    }
+
+    private void checkSchema() {
+        FormatSchema schema = mSchema;
+        if (schema == null) {
+            return;
+        }
+        boolean det = m.isDeterministic();
+        int enc = det ? SchemaCheck.ENC_NONE : ENVELOPE_RAW.equals(mEnvelope) ? SchemaCheck.ENC_BYTES : SchemaCheck.ENC_STRING;
+        SchemaCheck.check(schema, mSelector, enc, true, !det && ENVELOPE_NONE.equals(mEnvelope));
+    }
+
+    /**
+     * Ciphertext format of the _enc fields. none (default) is base64 of the
+     * engine output with the full aws_enc_ctx in every body. text and raw
+     * write an {@link Envelope}, as base64url or as bytes (a bytes field in
+     * avro and protobuf, base64 in json), and move the context out of the
+     * body: every message gets the short epoch id in the aws_enc_epoch
+     * header and the full context in the aws_enc_ctx header. With an epoch
+     * registry set, every new epoch is registered there instead and only
+     * the first message of the epoch carries aws_enc_ctx; that only works
+     * if every consumer reads the same registry, see
+     * {@link #setEpochRegistry}.
+     */
+    public void setEnvelope(String envelope) {
+        if (!ENVELOPE_NONE.equals(envelope) && !ENVELOPE_TEXT.equals(envelope) && !ENVELOPE_RAW.equals(envelope)) {
+            throw new IllegalArgumentException("unknown envelope: " + envelope);
+        }
+        mEnvelope = envelope;
+    }
+
+    public String getEnvelope() {
+        return mEnvelope;
+    }
+
+    /**
+     * Where envelope mode registers every new epoch, before its first
+     * message. Needed for batch records that are not exchanges. Consumers
+     * that miss the first message of an epoch find its context only in
+     * this registry, so it must be shared with them (a table, a compacted
+     * topic); an {@link InMemoryEpochRegistry} does not leave the process.
+     * Without one every message carries the full context header.
+     */
+    public void setEpochRegistry(EpochRegistry registry) {
+        mRegistry = registry;
+    }
+
+    /**
+     * Deterministic mode: each field is replaced by one AES-GCM-SIV value
+     * that is both joinable and decryptable, instead of a hash plus an _enc
+     * companion. No aws_enc_ctx is written, DecryptField needs the same key.
+     * context names the data key, as ciphertext:keyid. Output of this mode
+     * does not join with the hashes of the default mode.
+     */
+    public void setDeterministicKey(String context) {
+        m.setDeterministicKey(context);
+    }
+
+    /**
+     * Splits json arrays of at least this many elements across a fork join
+     * pool, so one large document uses several cores. Smaller arrays, and
+     * the streaming and avro paths, stay on the calling thread. 0 (the
+     * default) turns this off.
+     */
+    public void setParallelThreshold(int elements) {
+        if (elements < 0) {
+            throw new IllegalArgumentException("parallel threshold must not be negative: " + elements);
+        }
+        mParallelThreshold = elements;
+    }
+
+    /** Threads of the pool used by setParallelThreshold, defaults to the cores. */
+    public synchronized void setParallelism(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive: " + threads);
+        }
+        mParallelism = threads;
+        shutdownPool();
+    }
+
+    public void setRotationLowWaterMark(double ratio) {
+        m.setRotationLowWaterMark(ratio);
+    }
+
+    public void setCipherEngine(String name) {
+        m.setCipherEngine(name);
+    }
+
+    public void setHashCacheSize(int size) {
+        m.setHashCacheSize(size);
+    }
+
+    /**
+     * Publishes message, field and kms timings, see {@link HashCryptMetrics}.
+     * Off by default.
+     */
+    public void setMetrics(HashCryptMetrics metrics) {
+        m.setMetrics(metrics);
+        mMetrics = m.getMetrics();
+    }
+
+    /* the connection settings only apply to the kms key provider */
+    private KmsConnection kms() {
+        KmsConnection kms = m.getKmsConnection();
+        if (kms == null) {
+            throw new IllegalStateException("connection settings need the kms key provider");
+        }
+        return kms;
+    }
+
+    public void setRegion(String region) {
+        kms().setRegion(region);
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        kms().setMaxConnections(maxConnections);
+    }
+
+    public void setConnectionTimeout(long millis) {
+        kms().setConnectionTimeout(millis);
+    }
+
+    public void setSocketTimeout(long millis) {
+        kms().setSocketTimeout(millis);
+    }
+
+    public void setConnectionAcquisitionTimeout(long millis) {
+        kms().setConnectionAcquisitionTimeout(millis);
+    }
+
+    /**
+     * How long start() waits for the first data key of a lazy bean, in
+     * milliseconds, before failing the route start. Defaults to 30000; 0
+     * waits until the key is there. A negative value does not wait: the
+     * route starts at once, see {@link #isReady()} for health checks, and
+     * messages wait for the key as long as the cryptor's ready timeout.
+     */
+    public void setStartupTimeout(long millis) {
+        mStartupTimeout = millis;
+    }
+
+    /** True once the cryptor has its first data key, does not wait. */
+    public boolean isReady() {
+        return m != null && m.isReady();
+    }
+
+    @Override
+    public void start() {
+        if (m == null) {
+            return;
+        }
+        checkSchema();
+        // a lazy bean holds the route back until it can encrypt
+        try {
+            if (mStartupTimeout < 0) {
+                return;
+            }
+            if (mStartupTimeout == 0) {
+                m.awaitReady(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } else if (!m.awaitReady(mStartupTimeout, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("no data key after " + mStartupTimeout + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted waiting for the first data key", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        // release the kms client and rotation thread with the route
+        if (m != null && mOwnsCryptor) {
+            m.close();
+        }
+        shutdownPool();
+    }
+
+    private synchronized ForkJoinPool pool() {
+        if (mPool == null) {
+            mPool = new ForkJoinPool(mParallelism);
+        }
+        return mPool;
+    }
+
+    private synchronized void shutdownPool() {
+        if (mPool != null) {
+            mPool.shutdown();
+            mPool = null;
+        }
+    }
+
     public String testDecryptUTF8(String testcipher) throws Exception {
         return m.doDecryptUTF8(testcipher);
     }
 
     public void process(Exchange ex) throws Exception {
+        HashCryptMetrics metrics = mMetrics;
+        if (metrics == HashCryptMetrics.NOOP) {
+            doProcess(ex);
+            return;
+        }
+
+        long t0 = System.nanoTime();
+        boolean ok = false;
+        try {
+            doProcess(ex);
+            ok = true;
+        } finally {
+            metrics.recordMessage(System.nanoTime() - t0, ok);
+        }
+    }
+
+    void doProcess(Exchange ex) throws Exception {
+        Object raw = ex.getMessage().getBody();
+        if (raw instanceof GenericRecord) {
+            processRecord(ex.getMessage(), (GenericRecord) raw);
+            return;
+        }
+        // a schema only applies to binary bodies, json trees and maps take the tree path
+        if (mSchema != null ? raw instanceof byte[] || raw instanceof InputStream : mStreaming) {
+            processStream(ex);
+            return;
+        }
+
         //ObjectMapper mapper = new ObjectMapper();
         //JsonNode jsonNodeBody = ex.getMessage().getBody(JsonNode.class);
         Message msg = ex.getMessage();
@@ -70,45 +465,418 @@ public class HashCryptField implements Processor {
 
         ObjectNode body = ((ObjectNode) jsonb);
 
-        for (String s : mFields) {
-            //System.out.printf("PROCESSING: %s\n", s);
-            // for every field
-            JsonNode f = body.get(s);
-            if (f == null) {
-                continue;
+        // every field of this message is encrypted under the same epoch
+        KeyEpoch epoch = acquireEpoch();
+        try {
+            rewriteTree(body, epoch, publishContext(msg, epoch));
+        } finally {
+            release(epoch);
+        }
+
+        msg.setBody(toMap(body));
+    }
+
+    static Map<Object, Object> toMap(JsonNode body) {
+        return MAPPER.convertValue(body, MAP_TYPE);
+    }
+
+    static ObjectMapper mapper() {
+        return MAPPER;
+    }
+
+    AWSKMSHashcryptor getCryptor() {
+        return m;
+    }
+
+    /* the epoch for one message, null in deterministic mode; release it */
+    KeyEpoch acquireEpoch() throws Exception {
+        return m.isDeterministic() ? null : m.acquireEpoch();
+    }
+
+    static void release(KeyEpoch epoch) {
+        if (epoch != null) {
+            epoch.release();
+        }
+    }
+
+    /*
+     * Returns the context to write into the body. In envelope mode the
+     * context goes into the headers instead and this returns "", which
+     * still marks the root object for the rewriters.
+     */
+    String publishContext(Message msg, KeyEpoch epoch) {
+        if (epoch == null) {
+            return ""; // deterministic, nothing to publish
+        }
+        if (ENVELOPE_NONE.equals(mEnvelope)) {
+            return epoch.getDecryptionContext();
+        }
+
+        EpochRegistry reg = mRegistry;
+        if (reg == null) {
+            // nothing else tells a consumer the context, so every message carries it
+            if (msg == null) {
+                throw new IllegalStateException("envelope records without a message of their own need an epoch registry");
+            }
+            msg.setHeader(CONTEXT_FIELD, epoch.getDecryptionContext());
+        } else {
+            KeyEpoch last = mPublished.get();
+            if (last != epoch) {
+                reg.register(epoch.getEpochIdString(), epoch.getDecryptionContext());
+                if (msg != null && mPublished.compareAndSet(last, epoch)) {
+                    msg.setHeader(CONTEXT_FIELD, epoch.getDecryptionContext());
+                }
             }
+        }
+        if (msg != null) {
+            msg.setHeader(EPOCH_HEADER, epoch.getEpochIdString());
+        }
+        return "";
+    }
 
-            String v = f.asText();
-            if (v == null) {
-                continue;
+    /* the _enc value of v, a String, or a byte[] for raw envelopes */
+    private Object encryptField(KeyEpoch epoch, String v) throws Exception {
+        String env = mEnvelope;
+        if (ENVELOPE_NONE.equals(env)) {
+            return m.doEncryptUTF8(epoch, v);
+        }
+        byte[] e = m.doEncryptEnvelope(epoch, v.getBytes(StandardCharsets.UTF_8));
+        return ENVELOPE_RAW.equals(env) ? e : Envelope.toText(e);
+    }
+
+    private Object emptyField() {
+        return ENVELOPE_RAW.equals(mEnvelope) ? new byte[0] : "";
+    }
+
+    void rewriteTree(ObjectNode body, KeyEpoch epoch, String ctx) throws Exception {
+        rewriteNode(body, mSelector.root(), epoch);
+
+        // add the decryption context
+        if (!ctx.isEmpty()) {
+            body.put(CONTEXT_FIELD, ctx);
+        } else {
+            body.remove(CONTEXT_FIELD);
+        }
+    }
+
+    private void rewriteNode(JsonNode node, FieldSelector.Node sel, KeyEpoch epoch) throws Exception {
+        if (node.isObject()) {
+            ObjectNode obj = (ObjectNode) node;
+            for (Map.Entry<String, FieldSelector.Node> c : sel.children.entrySet()) {
+                JsonNode f = obj.get(c.getKey());
+                if (f == null) {
+                    continue;
+                }
+                if (c.getValue().terminal) {
+                    rewriteField(obj, c.getKey(), f, epoch);
+                } else {
+                    rewriteNode(f, c.getValue(), epoch);
+                }
+            }
+        } else if (node.isArray()) {
+            int threshold = mParallelThreshold;
+            if (threshold > 0 && node.size() >= threshold) {
+                rewriteParallel(node, sel, epoch);
+                return;
             }
+            rewriteElements(node, sel, epoch, 0, node.size());
+        }
+    }
 
-            v = v.trim(); // trim whitespace
+    private void rewriteElements(JsonNode node, FieldSelector.Node sel, KeyEpoch epoch, int from, int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            FieldSelector.Node el = sel.element(i);
+            if (el != null) {
+                rewriteNode(node.get(i), el, epoch);
+            }
+        }
+    }
 
-            if (v.isEmpty()) {
-                // do nothing for empty fields
-                body.put(String.format("%s_enc", s), "");
-                body.put(s, "");
-                continue;
+    /*
+     * Every element is its own ObjectNode, so elements can be rewritten
+     * concurrently. The cryptor keeps its buffers per thread.
+     */
+    private void rewriteParallel(JsonNode node, FieldSelector.Node sel, KeyEpoch epoch) throws Exception {
+        ForkJoinPool pool = pool();
+        int grain = Math.max(16, node.size() / (pool.getParallelism() * 4));
+        ElementTask task = new ElementTask(node, sel, epoch, 0, node.size(), grain);
+        try {
+            if (ForkJoinTask.getPool() == pool) {
+                task.invoke(); // a nested array, already on a worker
+            } else {
+                pool.invoke(task);
+            }
+        } catch (RuntimeException e) {
+            // fork join may hand back a copy, the original is in the chain
+            for (Throwable c = e; c != null; c = c.getCause()) {
+                if (c instanceof ElementFailure) {
+                    throw (Exception) c.getCause();
+                }
             }
+            throw e;
+        }
+    }
 
-            String e = m.doEncryptUTF8(v);
+    private static final class ElementFailure extends RuntimeException {
+        ElementFailure(Exception cause) {
+            super(cause);
+        }
+    }
 
-            // add encrypted field
-            body.put(String.format("%s_enc", s), e);
+    private final class ElementTask extends RecursiveAction {
+        private final JsonNode mNode;
+        private final FieldSelector.Node mSel;
+        private final KeyEpoch mEpoch;
+        private final int mFrom;
+        private final int mTo;
+        private final int mGrain;
 
-            String h = m.doHashUTF8(v);
+        ElementTask(JsonNode node, FieldSelector.Node sel, KeyEpoch epoch, int from, int to, int grain) {
+            mNode = node;
+            mSel = sel;
+            mEpoch = epoch;
+            mFrom = from;
+            mTo = to;
+            mGrain = grain;
+        }
 
-            // overwrite value with hash
-            body.put(s, h);
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= mGrain) {
+                try {
+                    rewriteElements(mNode, mSel, mEpoch, mFrom, mTo);
+                } catch (Exception e) {
+                    throw new ElementFailure(e);
+                }
+                return;
+            }
+            int mid = (mFrom + mTo) >>> 1;
+            invokeAll(
+                new ElementTask(mNode, mSel, mEpoch, mFrom, mid, mGrain),
+                new ElementTask(mNode, mSel, mEpoch, mid, mTo, mGrain)
+            );
         }
+    }
 
-        // add the decryption context
-        body.put("aws_enc_ctx", m.getDecryptionContext());
+    private void rewriteField(ObjectNode body, String s, JsonNode f, KeyEpoch epoch) throws Exception {
+        //System.out.printf("PROCESSING: %s\n", s);
+        String v = f.asText();
+        if (v == null) {
+            return;
+        }
 
-        ObjectMapper mapper = new ObjectMapper();
-        Map<Object, Object> out = mapper.convertValue(body, new TypeReference<Map<Object, Object>>(){});
+        v = v.trim(); // trim whitespace
 
-        msg.setBody(out);
+        if (epoch == null) {
+            // deterministic, one value and no companion
+            body.remove(String.format("%s_enc", s));
+            body.put(s, v.isEmpty() ? "" : m.doEncryptDeterministicUTF8(v));
+            return;
+        }
+
+        if (v.isEmpty()) {
+            // do nothing for empty fields
+            putEnc(body, s, emptyField());
+            body.put(s, "");
+            return;
+        }
+
+        // add encrypted field
+        putEnc(body, s, encryptField(epoch, v));
+
+        String h = m.doHashUTF8(v);
+
+        // overwrite value with hash
+        body.put(s, h);
+    }
+
+    private static void putEnc(ObjectNode body, String s, Object e) {
+        if (e instanceof byte[]) {
+            body.put(String.format("%s_enc", s), (byte[]) e);
+        } else {
+            body.put(String.format("%s_enc", s), (String) e);
+        }
+    }
+
+    /*
+     * Streaming mode: copy the body token by token from the raw bytes and
+     * only rewrite the configured fields, the document is never held as a
+     * tree. Produces the same fields as the tree mode, as json bytes.
+     */
+    private void processStream(Exchange ex) throws Exception {
+        Message msg = ex.getMessage();
+        Object raw = msg.getBody();
+        JsonFactory factory = mFactory;
+        FormatSchema schema = mSchema;
+        FormatSchema inSchema = mInputSchema;
+        if (schema == null && factory != MAPPER.getFactory()) {
+            throw new IllegalStateException(mFormat + " format needs a schema");
+        }
+
+        JsonParser p;
+        ByteArrayOutputStream out;
+        if (raw instanceof byte[]) {
+            byte[] b = (byte[]) raw;
+            p = factory.createParser(b);
+            out = new ByteArrayOutputStream(b.length + 256);
+        } else {
+            InputStream in = msg.getBody(InputStream.class);
+            if (in == null) {
+                throw new InvalidPayloadException(ex, InputStream.class);
+            }
+            p = factory.createParser(in);
+            out = new ByteArrayOutputStream(4096);
+        }
+
+        KeyEpoch epoch = acquireEpoch();
+
+        try (JsonParser parser = p; JsonGenerator g = factory.createGenerator(out)) {
+            if (schema != null) {
+                parser.setSchema(inSchema);
+                g.setSchema(schema);
+            }
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new InvalidPayloadException(ex, JsonNode.class);
+            }
+            rewriteObject(parser, g, epoch, publishContext(msg, epoch));
+        } finally {
+            release(epoch);
+        }
+
+        msg.setBody(out.toByteArray());
+    }
+
+    /*
+     * Avro records are rewritten in place, the schema must hold the _enc
+     * fields and the context, see setSchema.
+     */
+    private void processRecord(Message msg, GenericRecord record) throws Exception {
+        KeyEpoch epoch = acquireEpoch();
+        try {
+            rewriteRecord(record, mSelector.root(), epoch);
+            String ctx = publishContext(msg, epoch);
+            if (!ctx.isEmpty()) {
+                put(record, CONTEXT_FIELD, ctx);
+            }
+        } finally {
+            release(epoch);
+        }
+    }
+
+    private void rewriteRecord(Object node, FieldSelector.Node sel, KeyEpoch epoch) throws Exception {
+        if (node instanceof GenericRecord) {
+            GenericRecord r = (GenericRecord) node;
+            for (Map.Entry<String, FieldSelector.Node> c : sel.children.entrySet()) {
+                if (r.getSchema().getField(c.getKey()) == null) {
+                    continue;
+                }
+                Object f = r.get(c.getKey());
+                if (f == null) {
+                    continue;
+                }
+                if (!c.getValue().terminal) {
+                    rewriteRecord(f, c.getValue(), epoch);
+                    continue;
+                }
+
+                // Utf8 and numbers alike, same as JsonNode.asText()
+                String v = f.toString().trim();
+                if (epoch == null) {
+                    put(r, c.getKey(), v.isEmpty() ? "" : m.doEncryptDeterministicUTF8(v));
+                } else if (v.isEmpty()) {
+                    put(r, c.getKey() + "_enc", emptyField());
+                    put(r, c.getKey(), "");
+                } else {
+                    put(r, c.getKey() + "_enc", encryptField(epoch, v));
+                    put(r, c.getKey(), m.doHashUTF8(v));
+                }
+            }
+        } else if (node instanceof List) {
+            List<?> l = (List<?>) node;
+            for (int i = 0; i < l.size(); i++) {
+                FieldSelector.Node el = sel.element(i);
+                if (el != null) {
+                    rewriteRecord(l.get(i), el, epoch);
+                }
+            }
+        }
+    }
+
+    private static void put(GenericRecord r, String name, Object value) {
+        if (r.getSchema().getField(name) == null) {
+            throw new IllegalArgumentException("record " + r.getSchema().getFullName() + " has no field " + name);
+        }
+        // avro bytes are ByteBuffers
+        r.put(name, value instanceof byte[] ? ByteBuffer.wrap((byte[]) value) : value);
+    }
+
+    void rewriteObject(JsonParser p, JsonGenerator g, KeyEpoch epoch, String ctx) throws Exception {
+        copyObject(p, g, mSelector.root(), epoch, ctx);
+    }
+
+    /*
+     * Copies the object the parser is on, descending only into the branches
+     * the selector names. ctx is written at the end of the root object only,
+     * an empty ctx (envelope mode) only drops the one in the input.
+     */
+    private void copyObject(JsonParser p, JsonGenerator g, FieldSelector.Node sel, KeyEpoch epoch, String ctx) throws Exception {
+        g.writeStartObject();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            JsonToken t = p.nextToken();
+            FieldSelector.Node child = sel.children.get(name);
+
+            if (child != null && child.terminal) {
+                // containers read as empty text, same as JsonNode.asText()
+                String v = t.isScalarValue() ? p.getText().trim() : "";
+                p.skipChildren();
+
+                if (epoch == null) {
+                    g.writeStringField(name, v.isEmpty() ? "" : m.doEncryptDeterministicUTF8(v));
+                    continue;
+                }
+
+                Object e = v.isEmpty() ? emptyField() : encryptField(epoch, v);
+                g.writeStringField(name, v.isEmpty() ? "" : m.doHashUTF8(v));
+                if (e instanceof byte[]) {
+                    g.writeBinaryField(name + "_enc", (byte[]) e);
+                } else {
+                    g.writeStringField(name + "_enc", (String) e);
+                }
+            } else if ((ctx != null && CONTEXT_FIELD.equals(name)) || sel.encNames.contains(name)) {
+                // replaced by this processor
+                p.skipChildren();
+            } else if (child != null && t == JsonToken.START_OBJECT) {
+                g.writeFieldName(name);
+                copyObject(p, g, child, epoch, null);
+            } else if (child != null && t == JsonToken.START_ARRAY) {
+                g.writeFieldName(name);
+                copyArray(p, g, child, epoch);
+            } else {
+                g.writeFieldName(name);
+                g.copyCurrentStructure(p);
+            }
+        }
+
+        if (ctx != null && !ctx.isEmpty()) {
+            g.writeStringField(CONTEXT_FIELD, ctx);
+        }
+        g.writeEndObject();
+    }
+
+    private void copyArray(JsonParser p, JsonGenerator g, FieldSelector.Node sel, KeyEpoch epoch) throws Exception {
+        g.writeStartArray();
+        JsonToken t;
+        for (int i = 0; (t = p.nextToken()) != JsonToken.END_ARRAY; i++) {
+            FieldSelector.Node el = sel.element(i);
+            if (el != null && t == JsonToken.START_OBJECT) {
+                copyObject(p, g, el, epoch, null);
+            } else if (el != null && t == JsonToken.START_ARRAY) {
+                copyArray(p, g, el, epoch);
+            } else {
+                g.copyCurrentStructure(p);
+            }
+        }
+        g.writeEndArray();
     }
 }
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.toranova;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
+import org.apache.camel.Exchange;
+
+/**
+ * Asynchronous variant of {@link HashCryptField}. Messages are processed
+ * on the caller's thread; when an inline rotation is due, only the key
+ * fetch moves to a small pool of daemon threads and the message is
+ * encrypted with the current key meanwhile, so the consumer thread never
+ * waits on the key provider.
+ *
+ * While a lazy cryptor is still fetching its first key, callbacks wait on
+ * the cryptor without holding a thread and the messages are processed on
+ * the pool once the key is there, or fail after the ready timeout.
+ */
+public class HashCryptFieldAsync extends HashCryptField implements AsyncProcessor {
+
+    private ExecutorService mFetcher;
+    private int mFetchThreads = 2;
+
+    public HashCryptFieldAsync(){
+    }
+
+    public HashCryptFieldAsync(String fields, AWSKMSHashcryptor cryptor) {
+        super(fields, cryptor);
+    }
+
+    public HashCryptFieldAsync(String fields, String accessKey, String secretKey, String keyId, String hashAlgo, String hashSalt, int rotationPeriod, String proxy) throws Exception {
+        super(fields, accessKey, secretKey, keyId, hashAlgo, hashSalt, rotationPeriod, proxy);
+    }
+
+    public HashCryptFieldAsync(String fields, String accessKey, String secretKey, String keyId, String hashAlgo, String hashSalt, int rotationPeriod) throws Exception {
+        super(fields, accessKey, secretKey, keyId, hashAlgo, hashSalt, rotationPeriod);
+    }
+
+    public HashCryptFieldAsync(String fields, DataKeyProvider provider, String keyId, String hashAlgo, String hashSalt, int rotationPeriod) throws Exception {
+        super(fields, provider, keyId, hashAlgo, hashSalt, rotationPeriod);
+    }
+
+    public HashCryptFieldAsync(String fields, String keyId, String hashAlgo, String hashSalt, int rotationPeriod) throws Exception {
+        super(fields, keyId, hashAlgo, hashSalt, rotationPeriod);
+    }
+
+    @Override
+    public boolean process(Exchange ex, AsyncCallback callback) {
+        AWSKMSHashcryptor c = getCryptor();
+        if (!c.isReady()) {
+            // park on the first key, no thread waits for it
+            long timeout = c.getReadyTimeout();
+            c.whenReady().orTimeout(timeout, TimeUnit.MILLISECONDS).whenComplete((v, e) -> {
+                if (e != null) {
+                    ex.setException(new IllegalStateException("no data key after " + timeout + " ms", e));
+                    callback.done(false);
+                } else {
+                    offload(ex, callback);
+                }
+            });
+            return false;
+        }
+
+        try {
+            // only the kms call leaves this thread
+            c.rotateOn(fetcher());
+        } catch (RejectedExecutionException e) {
+            ex.setException(e);
+            callback.done(true);
+            return true;
+        }
+        runInto(ex);
+        callback.done(true);
+        return true;
+    }
+
+    @Override
+    public CompletableFuture<Exchange> processAsync(Exchange ex) {
+        CompletableFuture<Exchange> f = new CompletableFuture<>();
+        process(ex, doneSync -> f.complete(ex));
+        return f;
+    }
+
+    private void runInto(Exchange ex) {
+        try {
+            process(ex);
+        } catch (Throwable e) {
+            ex.setException(e);
+        }
+    }
+
+    private void offload(Exchange ex, AsyncCallback callback) {
+        try {
+            fetcher().execute(() -> {
+                runInto(ex);
+                callback.done(false);
+            });
+        } catch (RejectedExecutionException e) {
+            // stopped meanwhile
+            ex.setException(e);
+            callback.done(false);
+        }
+    }
+
+    /** Size of the pool for key fetches and warm-up backlog, 2 by default. */
+    public synchronized void setFetchThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("fetch threads must be positive: " + threads);
+        }
+        mFetchThreads = threads;
+    }
+
+    private synchronized ExecutorService fetcher() {
+        if (mFetcher == null) {
+            ThreadPoolExecutor p = new ThreadPoolExecutor(mFetchThreads, mFetchThreads,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "kms-async-fetch");
+                    t.setDaemon(true);
+                    return t;
+                });
+            p.allowCoreThreadTimeOut(true);
+            mFetcher = p;
+        }
+        return mFetcher;
+    }
+
+    @Override
+    public void stop() {
+        synchronized (this) {
+            if (mFetcher != null) {
+                mFetcher.shutdown();
+                mFetcher = null;
+            }
+        }
+        super.stop();
+    }
+}
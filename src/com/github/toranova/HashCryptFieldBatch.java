@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.toranova;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.camel.Message;
+import org.apache.camel.Exchange;
+import org.apache.camel.InvalidPayloadException;
+
+/**
+ * Processes many records per call: a List of aggregated exchanges (or of
+ * records), a json array, or a body of newline delimited json objects.
+ * The key epoch is checked once per batch and every record gets the same
+ * decryption context. Batches are json only: a binary format, a schema or
+ * streaming are rejected, an avro GenericRecord body is rewritten as a
+ * single record like {@link HashCryptField} does.
+ */
+public class HashCryptFieldBatch extends HashCryptField {
+
+    public HashCryptFieldBatch(){
+    }
+
+    public HashCryptFieldBatch(String fields, AWSKMSHashcryptor cryptor) {
+        super(fields, cryptor);
+    }
+
+    public HashCryptFieldBatch(String fields, String accessKey, String secretKey, String keyId, String hashAlgo, String hashSalt, int rotationPeriod, String proxy) throws Exception {
+        super(fields, accessKey, secretKey, keyId, hashAlgo, hashSalt, rotationPeriod, proxy);
+    }
+
+    public HashCryptFieldBatch(String fields, String accessKey, String secretKey, String keyId, String hashAlgo, String hashSalt, int rotationPeriod) throws Exception {
+        super(fields, accessKey, secretKey, keyId, hashAlgo, hashSalt, rotationPeriod);
+    }
+
+    public HashCryptFieldBatch(String fields, DataKeyProvider provider, String keyId, String hashAlgo, String hashSalt, int rotationPeriod) throws Exception {
+        super(fields, provider, keyId, hashAlgo, hashSalt, rotationPeriod);
+    }
+
+    public HashCryptFieldBatch(String fields, String keyId, String hashAlgo, String hashSalt, int rotationPeriod) throws Exception {
+        super(fields, keyId, hashAlgo, hashSalt, rotationPeriod);
+    }
+
+    // the batch paths below read json only
+
+    @Override
+    public synchronized void setFormat(String format) {
+        if (!FORMAT_JSON.equals(format)) {
+            throw new IllegalArgumentException("batches are json only, use HashCryptField for " + format);
+        }
+        super.setFormat(format);
+    }
+
+    @Override
+    public synchronized void setSchema(String schema) {
+        if (schema != null) {
+            throw new IllegalArgumentException("batches are json only and take no schema");
+        }
+        super.setSchema(schema);
+    }
+
+    @Override
+    public synchronized void setInputSchema(String schema) {
+        if (schema != null) {
+            throw new IllegalArgumentException("batches are json only and take no schema");
+        }
+        super.setInputSchema(schema);
+    }
+
+    /** Byte and stream batches are always read in one pass, true is rejected. */
+    @Override
+    public void setStreaming(boolean streaming) {
+        if (streaming) {
+            throw new IllegalArgumentException("batches pick their path by body type, streaming cannot be set");
+        }
+        super.setStreaming(streaming);
+    }
+
+    @Override
+    void doProcess(Exchange ex) throws Exception {
+        Message msg = ex.getMessage();
+        Object raw = msg.getBody();
+
+        if (raw instanceof GenericRecord) {
+            super.doProcess(ex);
+        } else if (raw instanceof List) {
+            msg.setBody(processBatch((List<?>) raw));
+        } else if (raw instanceof JsonNode) {
+            JsonNode body = (JsonNode) raw;
+            if (!body.isArray()) {
+                super.doProcess(ex);
+                return;
+            }
+            KeyEpoch epoch = acquireEpoch();
+            List<Object> out = new ArrayList<>(body.size());
+            try {
+                String ctx = publishContext(msg, epoch);
+                for (JsonNode r : body) {
+                    out.add(rewriteRecord(ex, r, epoch, ctx));
+                }
+            } finally {
+                release(epoch);
+            }
+            msg.setBody(out);
+        } else {
+            processStream(ex);
+        }
+    }
+
+    /**
+     * Rewrites every record of an aggregated batch in place. Exchange entries
+     * have their message body replaced, any other entry is converted and
+     * replaced in the returned list.
+     */
+    public List<Object> processBatch(List<?> records) throws Exception {
+        KeyEpoch epoch = acquireEpoch();
+
+        List<Object> out = new ArrayList<>(records.size());
+        try {
+            for (Object r : records) {
+                if (r instanceof Exchange) {
+                    Exchange e = (Exchange) r;
+                    JsonNode body = e.getMessage().getBody(JsonNode.class);
+                    e.getMessage().setBody(rewriteRecord(e, body, epoch, publishContext(e.getMessage(), epoch)));
+                    out.add(e);
+                } else {
+                    out.add(rewriteRecord(null, mapper().valueToTree(r), epoch, publishContext(null, epoch)));
+                }
+            }
+        } finally {
+            release(epoch);
+        }
+        return out;
+    }
+
+    private Map<Object, Object> rewriteRecord(Exchange ex, JsonNode r, KeyEpoch epoch, String ctx) throws Exception {
+        if (r == null || !r.isObject()) {
+            if (ex == null) {
+                throw new IllegalArgumentException("batch record is not a json object");
+            }
+            throw new InvalidPayloadException(ex, ObjectNode.class);
+        }
+        rewriteTree((ObjectNode) r, epoch, ctx);
+        return toMap(r);
+    }
+
+    /*
+     * A json array is written back as an array, anything else is read as a
+     * sequence of root level objects and written back one per line.
+     */
+    private void processStream(Exchange ex) throws Exception {
+        Message msg = ex.getMessage();
+        InputStream in = msg.getBody(InputStream.class);
+        if (in == null) {
+            throw new InvalidPayloadException(ex, InputStream.class);
+        }
+
+        JsonFactory factory = mapper().getFactory();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+
+        KeyEpoch epoch = acquireEpoch();
+        try (JsonParser p = factory.createParser(in); JsonGenerator g = factory.createGenerator(out)) {
+            String ctx = publishContext(msg, epoch);
+            JsonToken t = p.nextToken();
+            if (t == JsonToken.START_ARRAY) {
+                g.writeStartArray();
+                while ((t = p.nextToken()) == JsonToken.START_OBJECT) {
+                    rewriteObject(p, g, epoch, ctx);
+                }
+                if (t != JsonToken.END_ARRAY) {
+                    throw new InvalidPayloadException(ex, ObjectNode.class);
+                }
+                g.writeEndArray();
+            } else {
+                g.setRootValueSeparator(null);
+                for (; t != null; t = p.nextToken()) {
+                    if (t != JsonToken.START_OBJECT) {
+                        throw new InvalidPayloadException(ex, ObjectNode.class);
+                    }
+                    rewriteObject(p, g, epoch, ctx);
+                    g.writeRaw('\n');
+                }
+            }
+        } finally {
+            release(epoch);
+        }
+
+        msg.setBody(out.toByteArray());
+    }
+}
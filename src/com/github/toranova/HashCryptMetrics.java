@@ -0,0 +1,50 @@
+package com.github.toranova;
+
+import java.util.function.Supplier;
+
+/**
+ * Receives timings and counts from the cryptor and the processors. Every
+ * method defaults to doing nothing, and callers skip the clock reads
+ * altogether while {@link #NOOP} is installed, so the fast path costs one
+ * field read when metrics are disabled.
+ *
+ * Implementations are called from every processing thread and must be
+ * thread safe. See {@link MicrometerHashCryptMetrics}.
+ */
+public interface HashCryptMetrics {
+
+    HashCryptMetrics NOOP = new HashCryptMetrics() {
+    };
+
+    /** One field encrypted, bytes is the plaintext length. */
+    default void recordEncrypt(long nanos, int bytes) {
+    }
+
+    /** One field decrypted, bytes is the ciphertext length. */
+    default void recordDecrypt(long nanos, int bytes) {
+    }
+
+    /** One value hashed, cache hits included. */
+    default void recordHash(long nanos, int bytes) {
+    }
+
+    /** One kms request, op is the api name, e.g. GenerateDataKey. */
+    default void recordKmsCall(String op, long nanos, boolean success) {
+    }
+
+    /** A new data key epoch was swapped in. */
+    default void recordRotation() {
+    }
+
+    /** One exchange through a processor, failed ones included. */
+    default void recordMessage(long nanos, boolean success) {
+    }
+
+    /**
+     * Called once when the metrics are installed on a cryptor, current
+     * returns the epoch in use at the time it is called. Use it for gauges
+     * such as the key age and usage.
+     */
+    default void bindEpoch(Supplier<KeyEpoch> current) {
+    }
+}
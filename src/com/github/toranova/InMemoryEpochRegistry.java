@@ -0,0 +1,56 @@
+package com.github.toranova;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Epochs registered or seen by this process. The decrypting processor
+ * fills it from the aws_enc_ctx header of the messages it reads. Holds at
+ * most maxSize epochs and forgets the oldest first; rotated out epochs are
+ * only needed again for messages that old.
+ */
+public class InMemoryEpochRegistry implements EpochRegistry {
+
+    public static final int DEFAULT_MAX_SIZE = 1024;
+
+    private final int mMaxSize;
+    private final ConcurrentHashMap<String, String> mContexts = new ConcurrentHashMap<>();
+    // registration order, for eviction
+    private final ConcurrentLinkedQueue<String> mOrder = new ConcurrentLinkedQueue<>();
+
+    public InMemoryEpochRegistry() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public InMemoryEpochRegistry(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        mMaxSize = maxSize;
+    }
+
+    @Override
+    public void register(String epochId, String context) {
+        // called for every message, most epochs are known already
+        if (mContexts.get(epochId) != null || mContexts.putIfAbsent(epochId, context) != null) {
+            return;
+        }
+        mOrder.add(epochId);
+        while (mContexts.size() > mMaxSize) {
+            String old = mOrder.poll();
+            if (old == null) {
+                break;
+            }
+            mContexts.remove(old);
+        }
+    }
+
+    @Override
+    public String lookup(String epochId) {
+        return mContexts.get(epochId);
+    }
+
+    public int size() {
+        return mContexts.size();
+    }
+}
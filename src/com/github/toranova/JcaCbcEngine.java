@@ -0,0 +1,71 @@
+package com.github.toranova;
+
+import java.security.GeneralSecurityException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+
+/**
+ * nonce(16) || AES-CBC-PKCS5(plaintext) through javax.crypto, which the jdk
+ * backs with AES-NI intrinsics. Byte for byte the same format as
+ * {@link BouncyCastleCbcEngine}.
+ */
+public class JcaCbcEngine implements CipherEngine {
+
+    private static final int NONCE_LEN = 16;
+
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/CBC/PKCS5Padding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    @Override
+    public String getName() {
+        return CipherEngines.JCA_CBC;
+    }
+
+    @Override
+    public int getEncryptedSize(int len) {
+        return NONCE_LEN + (len / 16 + 1) * 16;
+    }
+
+    @Override
+    public int getDecryptedSize(int len) {
+        return Math.max(len - NONCE_LEN, 0);
+    }
+
+    @Override
+    public int encrypt(KeyEpoch key, byte[] in, int inOff, int inLen, byte[] out, int outOff) throws InvalidCipherTextException {
+        byte[] nonce = CipherEngines.nonce(NONCE_LEN);
+        System.arraycopy(nonce, 0, out, outOff, NONCE_LEN);
+        try {
+            Cipher cip = CIPHER.get();
+            cip.init(Cipher.ENCRYPT_MODE, key.getSecretKey(), new IvParameterSpec(nonce));
+            return NONCE_LEN + cip.doFinal(in, inOff, inLen, out, outOff + NONCE_LEN);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public int decrypt(KeyEpoch key, byte[] in, int inOff, int inLen, byte[] out, int outOff) throws InvalidCipherTextException {
+        if (inLen < NONCE_LEN) {
+            throw new InvalidCipherTextException("ciphertext shorter than the nonce");
+        }
+        try {
+            Cipher cip = CIPHER.get();
+            cip.init(Cipher.DECRYPT_MODE, key.getSecretKey(), new IvParameterSpec(in, inOff, NONCE_LEN));
+            return cip.doFinal(in, inOff + NONCE_LEN, inLen - NONCE_LEN, out, outOff);
+        } catch (BadPaddingException | IllegalBlockSizeException e) {
+            throw new InvalidCipherTextException(e.getMessage(), e);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
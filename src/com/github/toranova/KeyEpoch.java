@@ -0,0 +1,119 @@
+package com.github.toranova;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * One data key generation: the plaintext key, the kms ciphertext that names
+ * it and the number of encryptions done with it. Everything but the usage
+ * counter is immutable, so a message that holds on to an epoch always
+ * encrypts with the key its decryption context refers to. The cryptor
+ * holds a reference while the epoch is current and every user one more;
+ * the key is wiped when a retired epoch is released by its last user.
+ */
+public final class KeyEpoch {
+
+    private final KeyParameter mKeyParam;
+    private final String mKeyCtB64;
+    private final String mKeyId;
+    private final String mContext;
+    private final long mEpochId;
+    private final AtomicLong mUsage = new AtomicLong();
+    // one for the cryptor while current, plus one per user
+    private final AtomicInteger mRefs = new AtomicInteger(1);
+    private final long mCreatedAt = System.currentTimeMillis();
+    // built on first use by the jca engines
+    private volatile SecretKeySpec mSecretKey;
+
+    KeyEpoch(KeyParameter keyParam, String keyCtB64, String keyId) {
+        mKeyParam = keyParam;
+        mKeyCtB64 = keyCtB64;
+        mKeyId = keyId;
+        mContext = String.format("%s:%s", keyCtB64, keyId);
+        mEpochId = Envelope.epochId(keyCtB64);
+    }
+
+    KeyParameter getKeyParameter() {
+        return mKeyParam;
+    }
+
+    SecretKeySpec getSecretKey() {
+        SecretKeySpec k = mSecretKey;
+        if (k == null) {
+            k = new SecretKeySpec(mKeyParam.getKey(), "AES");
+            mSecretKey = k;
+        }
+        return k;
+    }
+
+    public String getKeyCiphertext() {
+        return mKeyCtB64;
+    }
+
+    public String getKeyId() {
+        return mKeyId;
+    }
+
+    public String getDecryptionContext() {
+        return mContext;
+    }
+
+    /** Wall clock time the key was fetched, in epoch millis. */
+    public long getCreatedAt() {
+        return mCreatedAt;
+    }
+
+    /** The short id envelopes refer to this key by, see {@link Envelope}. */
+    public long getEpochId() {
+        return mEpochId;
+    }
+
+    public String getEpochIdString() {
+        return Envelope.idToString(mEpochId);
+    }
+
+    public long getUsage() {
+        return mUsage.get();
+    }
+
+    long use(int n) {
+        return mUsage.addAndGet(n);
+    }
+
+    /* takes a reference, false once the epoch was destroyed */
+    boolean acquire() {
+        for (;;) {
+            int r = mRefs.get();
+            if (r == 0) {
+                return false;
+            }
+            if (mRefs.compareAndSet(r, r + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drops a reference taken by {@link AWSKMSHashcryptor#acquireEpoch()}.
+     * The epoch must not be used afterwards.
+     */
+    public void release() {
+        if (mRefs.decrementAndGet() == 0) {
+            destroy();
+        }
+    }
+
+    /*
+     * Overwrites the plaintext key, the epoch is unusable afterwards. The
+     * jca key spec keeps its own copy that cannot be wiped, it is only
+     * dropped here.
+     */
+    void destroy() {
+        Arrays.fill(mKeyParam.getKey(), (byte) 0);
+        mSecretKey = null;
+    }
+}
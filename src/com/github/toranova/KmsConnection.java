@@ -0,0 +1,150 @@
+package com.github.toranova;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.apache.ProxyConfiguration;
+
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.kms.KmsClient;
+import software.amazon.awssdk.services.kms.KmsClientBuilder;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+
+/**
+ * Owns one KmsClient and its pooled http client for the life of a cryptor,
+ * so rotations reuse warm connections instead of paying for a new tls
+ * handshake, proxy negotiation and credential lookup every time.
+ * The client is built on first use and again after {@link #close()} or
+ * a settings change; a replaced client is closed once the calls still
+ * running on it return.
+ */
+public class KmsConnection implements Closeable {
+
+    private final String mAwsAccessKey;
+    private final String mAwsSecretKey;
+    private final String mProxy;
+
+    private Region mRegion = Region.AP_SOUTHEAST_1;
+    private int mMaxConnections = 4;
+    private long mConnectionTimeoutMs = 2000;
+    private long mSocketTimeoutMs = 5000;
+    private long mAcquisitionTimeoutMs = 5000;
+
+    private static final class Lease {
+        final KmsClient client;
+        // one for the connection, plus one per call in flight
+        final AtomicInteger refs = new AtomicInteger(1);
+
+        Lease(KmsClient client) {
+            this.client = client;
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                client.close();
+            }
+        }
+    }
+
+    private Lease mLease;
+
+    public KmsConnection(String awsAccessKey, String awsSecretKey, String proxy) {
+        mAwsAccessKey = awsAccessKey;
+        mAwsSecretKey = awsSecretKey;
+        mProxy = proxy;
+    }
+
+    /**
+     * Runs fn with the current client. A settings change or close() while
+     * fn runs closes the client only after fn returns.
+     */
+    public <T> T call(Function<KmsClient, T> fn) {
+        Lease l = acquire();
+        try {
+            return fn.apply(l.client);
+        } finally {
+            l.release();
+        }
+    }
+
+    private synchronized Lease acquire() {
+        if (mLease == null) {
+            mLease = new Lease(buildClient());
+        }
+        // the connection's own reference keeps it above 0 here
+        mLease.refs.incrementAndGet();
+        return mLease;
+    }
+
+    protected KmsClient buildClient() {
+        KmsClientBuilder builder = KmsClient.builder()
+            .httpClientBuilder(configure(ApacheHttpClient.builder()))
+            .region(mRegion);
+
+        if (mAwsAccessKey != null && mAwsSecretKey != null) {
+            AwsBasicCredentials creds = AwsBasicCredentials.create(
+                    mAwsAccessKey, mAwsSecretKey
+            );
+            builder.credentialsProvider(StaticCredentialsProvider.create(creds));
+        }
+
+        return builder.build();
+    }
+
+    /* the pool settings, applied to the http client of every new client */
+    synchronized ApacheHttpClient.Builder configure(ApacheHttpClient.Builder http) {
+        http.maxConnections(mMaxConnections)
+            .connectionTimeout(Duration.ofMillis(mConnectionTimeoutMs))
+            .socketTimeout(Duration.ofMillis(mSocketTimeoutMs))
+            .connectionAcquisitionTimeout(Duration.ofMillis(mAcquisitionTimeoutMs))
+            .tcpKeepAlive(true);
+
+        if (mProxy != null) {
+            http.proxyConfiguration(ProxyConfiguration.builder()
+                .endpoint(URI.create(mProxy))
+                .build());
+        }
+        return http;
+    }
+
+    // pool settings apply to the next client, so retire the current one
+
+    /** The kms region, e.g. eu-west-1. Defaults to ap-southeast-1. */
+    public synchronized void setRegion(String region) {
+        mRegion = Region.of(region);
+        close();
+    }
+
+    public synchronized void setMaxConnections(int maxConnections) {
+        mMaxConnections = maxConnections;
+        close();
+    }
+
+    public synchronized void setConnectionTimeout(long millis) {
+        mConnectionTimeoutMs = millis;
+        close();
+    }
+
+    public synchronized void setSocketTimeout(long millis) {
+        mSocketTimeoutMs = millis;
+        close();
+    }
+
+    public synchronized void setConnectionAcquisitionTimeout(long millis) {
+        mAcquisitionTimeoutMs = millis;
+        close();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mLease != null) {
+            mLease.release();
+            mLease = null;
+        }
+    }
+}
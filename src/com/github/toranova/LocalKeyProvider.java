@@ -0,0 +1,72 @@
+package com.github.toranova;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESWrapEngine;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * In-process stand-in for kms: data keys are wrapped (rfc 3394 aes key
+ * wrap) under a master key held in memory. For tests, benchmarks and
+ * offline load tests, anything encrypted with it is only as safe as the
+ * master key.
+ *
+ * Contexts look like the kms ones, so DecryptField works the same with
+ * either provider as long as both sides share the master key.
+ */
+public class LocalKeyProvider implements DataKeyProvider {
+
+    // same as the kms AES_128 key spec
+    private static final int DATA_KEY_LEN = 16;
+
+    private final KeyParameter mMaster;
+    private final SecureRandom mRandom = new SecureRandom();
+
+    /** @param masterKey 16, 24 or 32 bytes */
+    public LocalKeyProvider(byte[] masterKey) {
+        if (masterKey.length != 16 && masterKey.length != 24 && masterKey.length != 32) {
+            throw new IllegalArgumentException("master key must be 16, 24 or 32 bytes");
+        }
+        mMaster = new KeyParameter(masterKey);
+    }
+
+    /** A random master key, contexts only decrypt within this instance. */
+    public LocalKeyProvider() {
+        byte[] k = new byte[32];
+        new SecureRandom().nextBytes(k);
+        mMaster = new KeyParameter(k);
+        Arrays.fill(k, (byte) 0);
+    }
+
+    @Override
+    public KeyEpoch generateDataKey(String keyId) {
+        byte[] k = new byte[DATA_KEY_LEN];
+        mRandom.nextBytes(k);
+
+        AESWrapEngine wrap = new AESWrapEngine();
+        wrap.init(true, mMaster);
+        byte[] ct = wrap.wrap(k, 0, k.length);
+
+        KeyEpoch epoch = new KeyEpoch(new KeyParameter(k), Base64.getEncoder().encodeToString(ct), keyId);
+        Arrays.fill(k, (byte) 0);
+        return epoch;
+    }
+
+    @Override
+    public KeyEpoch decryptDataKey(String keyCtB64, String keyId) {
+        AESWrapEngine wrap = new AESWrapEngine();
+        wrap.init(false, mMaster);
+        byte[] ct = Base64.getDecoder().decode(keyCtB64);
+        try {
+            byte[] k = wrap.unwrap(ct, 0, ct.length);
+            KeyEpoch epoch = new KeyEpoch(new KeyParameter(k), keyCtB64, keyId);
+            Arrays.fill(k, (byte) 0);
+            return epoch;
+        } catch (InvalidCipherTextException e) {
+            throw new IllegalArgumentException("data key was not wrapped with this master key", e);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.github.toranova;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Publishes to a micrometer registry, e.g. the one of camel-micrometer or
+ * of the application. micrometer-core is a provided dependency, it must be
+ * on the classpath to use this class.
+ *
+ * Meters, all prefixed with hashcrypt:
+ * <pre>
+ *   hashcrypt.encrypt            timer, per field
+ *   hashcrypt.decrypt            timer, per field
+ *   hashcrypt.hash               timer, per field
+ *   hashcrypt.bytes              summary, tagged op=encrypt|decrypt|hash
+ *   hashcrypt.kms.calls          timer, tagged op and outcome=success|failure
+ *   hashcrypt.key.rotations      counter
+ *   hashcrypt.key.age            gauge, seconds since the current key was fetched
+ *   hashcrypt.key.usage          gauge, encryptions done with the current key
+ *   hashcrypt.messages           timer, tagged outcome=success|failure
+ * </pre>
+ *
+ * The key gauges follow a single cryptor, so every bean needs its own
+ * instance, told apart by its tags.
+ */
+public class MicrometerHashCryptMetrics implements HashCryptMetrics {
+
+    private final MeterRegistry mRegistry;
+    private final Tags mTags;
+
+    private final Timer mEncrypt;
+    private final Timer mDecrypt;
+    private final Timer mHash;
+    private final DistributionSummary mEncryptBytes;
+    private final DistributionSummary mDecryptBytes;
+    private final DistributionSummary mHashBytes;
+    private final Counter mRotations;
+    private final Timer mMessages;
+    private final Timer mFailedMessages;
+    private final AtomicBoolean mBound = new AtomicBoolean(false);
+
+    /**
+     * @param tags extra key value pairs added to every meter, e.g. "route", "orders"
+     */
+    public MicrometerHashCryptMetrics(MeterRegistry registry, String... tags) {
+        mRegistry = registry;
+        mTags = Tags.of(tags);
+
+        mEncrypt = Timer.builder("hashcrypt.encrypt").tags(mTags).register(registry);
+        mDecrypt = Timer.builder("hashcrypt.decrypt").tags(mTags).register(registry);
+        mHash = Timer.builder("hashcrypt.hash").tags(mTags).register(registry);
+        mEncryptBytes = bytes("encrypt");
+        mDecryptBytes = bytes("decrypt");
+        mHashBytes = bytes("hash");
+        mRotations = Counter.builder("hashcrypt.key.rotations").tags(mTags).register(registry);
+        mMessages = Timer.builder("hashcrypt.messages").tags(mTags).tag("outcome", "success").register(registry);
+        mFailedMessages = Timer.builder("hashcrypt.messages").tags(mTags).tag("outcome", "failure").register(registry);
+    }
+
+    private DistributionSummary bytes(String op) {
+        return DistributionSummary.builder("hashcrypt.bytes")
+            .baseUnit("bytes")
+            .tags(mTags)
+            .tag("op", op)
+            .register(mRegistry);
+    }
+
+    @Override
+    public void recordEncrypt(long nanos, int bytes) {
+        mEncrypt.record(nanos, TimeUnit.NANOSECONDS);
+        mEncryptBytes.record(bytes);
+    }
+
+    @Override
+    public void recordDecrypt(long nanos, int bytes) {
+        mDecrypt.record(nanos, TimeUnit.NANOSECONDS);
+        mDecryptBytes.record(bytes);
+    }
+
+    @Override
+    public void recordHash(long nanos, int bytes) {
+        mHash.record(nanos, TimeUnit.NANOSECONDS);
+        mHashBytes.record(bytes);
+    }
+
+    @Override
+    public void recordKmsCall(String op, long nanos, boolean success) {
+        // rare enough to look the timer up every time
+        Timer.builder("hashcrypt.kms.calls")
+            .tags(mTags)
+            .tag("op", op)
+            .tag("outcome", success ? "success" : "failure")
+            .register(mRegistry)
+            .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordRotation() {
+        mRotations.increment();
+    }
+
+    @Override
+    public void recordMessage(long nanos, boolean success) {
+        (success ? mMessages : mFailedMessages).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void bindEpoch(Supplier<KeyEpoch> current) {
+        // the registry hands back the first gauge for the same name and tags
+        if (!mBound.compareAndSet(false, true)) {
+            throw new IllegalStateException("metrics already bound to a cryptor, create one MicrometerHashCryptMetrics per bean with distinct tags");
+        }
+        // the registry only keeps weak references unless told otherwise
+        // NaN until a lazy started cryptor has its first key
+        Gauge.builder("hashcrypt.key.age", current, c -> c.get() == null ? Double.NaN : (System.currentTimeMillis() - c.get().getCreatedAt()) / 1000.0)
+            .baseUnit("seconds")
+            .tags(mTags)
+            .strongReference(true)
+            .register(mRegistry);
+        Gauge.builder("hashcrypt.key.usage", current, c -> c.get() == null ? Double.NaN : c.get().getUsage())
+            .tags(mTags)
+            .strongReference(true)
+            .register(mRegistry);
+    }
+}
@@ -0,0 +1,504 @@
+package com.github.toranova;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Re-encrypts an NDJSON archive under a new data key, e.g. before a kms key
+ * is retired. The _enc value of every selected field is decrypted with the
+ * key named by the record's aws_enc_ctx and encrypted again with the current
+ * epoch of the cryptor, which also replaces aws_enc_ctx. Hashes stay as they
+ * are, they do not depend on the key. Blank lines and records without
+ * aws_enc_ctx or _enc values are copied unchanged. Envelope records (_enc
+ * values but no aws_enc_ctx, or binary _enc values) fail the run, they
+ * would stay under the old key. Deterministic values look like plaintext
+ * here and are copied too; they cannot be moved to another key without
+ * breaking joins.
+ *
+ * The input is memory mapped one window at a time and cut into batches of
+ * lines. Batches are re-encrypted on a pool of workers and written in input
+ * order by a single writer, which records the input and output offsets in
+ * the checkpoint file after every batch. Running again with that checkpoint
+ * truncates the output to the recorded offset and carries on from there.
+ * The checkpoint is deleted once the whole input is done.
+ *
+ * <pre>
+ *   java -cp ... com.github.toranova.RekeyTool --fields nric,owner.name \
+ *       --key-id alias/new [options] in.ndjson out.ndjson
+ * </pre>
+ *
+ * Run with no arguments for the options. --local takes a base64 master key
+ * and uses a {@link LocalKeyProvider} instead of kms, for archives written
+ * with one.
+ */
+public class RekeyTool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RekeyTool.class);
+
+    private static final byte NL = '\n';
+    // marks the end of the input for the writer
+    private static final Future<Batch> END = CompletableFuture.completedFuture(null);
+
+    private static final String USAGE = String.join("\n",
+        "usage: RekeyTool --fields <paths> --key-id <kms key> [options] <in.ndjson> <out.ndjson>",
+        "  --fields         fields to re-encrypt, same syntax as HashCryptField",
+        "  --key-id         kms key id for the new data keys",
+        "  --local          base64 master key, use a LocalKeyProvider instead of kms",
+        "  --access-key     aws access key, defaults to $AWS_ACCESS_KEY_ID",
+        "  --secret-key     aws secret key, defaults to $AWS_SECRET_ACCESS_KEY",
+        "  --proxy          proxy for kms",
+        "  --region         kms region",
+        "  --cipher-engine  bc-cbc (default), jca-cbc or bc-gcm-siv, for both keys",
+        "  --rotation       encryptions per data key, default 1000000",
+        "  --threads        workers, default the number of cores",
+        "  --batch          records per batch, default 1000",
+        "  --checkpoint     checkpoint file, default <out.ndjson>.checkpoint");
+
+    private static final class Batch {
+        final List<byte[]> lines;
+        // input offset just past the last line
+        final long end;
+        byte[] out;
+
+        Batch(List<byte[]> lines, long end) {
+            this.lines = lines;
+            this.end = end;
+        }
+    }
+
+    private interface BatchSink {
+        void accept(Batch b) throws Exception;
+    }
+
+    private final ObjectMapper mMapper = new ObjectMapper();
+    private final DataKeyCache mOldKeys;
+    private final AWSKMSHashcryptor mCryptor;
+    private final FieldSelector mSelector;
+    private int mThreads = Runtime.getRuntime().availableProcessors();
+    private int mBatchSize = 1000;
+    private int mWindow = 64 << 20;
+    private Path mCheckpoint = null;
+
+    private final LongAdder mRekeyed = new LongAdder();
+    private final LongAdder mCopied = new LongAdder();
+
+    /**
+     * @param oldKeys unwraps the data keys of the archive
+     * @param cryptor encrypts with the new data keys, its hash settings are not used
+     */
+    public RekeyTool(DataKeyProvider oldKeys, AWSKMSHashcryptor cryptor, String fields) {
+        mOldKeys = new DataKeyCache(oldKeys::decryptDataKey, 100, 3600000);
+        mCryptor = cryptor;
+        mSelector = new FieldSelector(fields);
+    }
+
+    public void setThreads(int threads) {
+        mThreads = threads;
+    }
+
+    public void setBatchSize(int records) {
+        mBatchSize = records;
+    }
+
+    /** Null (the default) runs without checkpoints. */
+    public void setCheckpoint(Path checkpoint) {
+        mCheckpoint = checkpoint;
+    }
+
+    /* bytes mapped at a time, a line must fit in one window */
+    void setWindow(int bytes) {
+        mWindow = bytes;
+    }
+
+    public long getRekeyed() {
+        return mRekeyed.sum();
+    }
+
+    public long getCopied() {
+        return mCopied.sum();
+    }
+
+    /** Re-encrypts in into out, resuming from the checkpoint if there is one. */
+    public void run(Path in, Path out) throws Exception {
+        // the output is truncated before the input is read
+        if (Files.exists(out) && Files.isSameFile(in, out)) {
+            throw new IllegalArgumentException("input and output are the same file: " + in);
+        }
+        long[] cp = readCheckpoint();
+        if (cp[0] > 0) {
+            LOG.info("resuming at input offset {}, output offset {}", cp[0], cp[1]);
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(mThreads, daemon("rekey-worker"));
+        ExecutorService writer = Executors.newSingleThreadExecutor(daemon("rekey-writer"));
+        try (FileChannel ic = FileChannel.open(in, StandardOpenOption.READ);
+             FileChannel oc = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (oc.size() < cp[1]) {
+                throw new IOException("output is shorter than its checkpoint: " + out);
+            }
+            oc.truncate(cp[1]);
+            oc.position(cp[1]);
+
+            // bounded, so reading stays a few batches ahead of writing
+            BlockingQueue<Future<Batch>> pending = new ArrayBlockingQueue<>(mThreads * 2);
+            Future<?> written = writer.submit(() -> {
+                write(pending, oc);
+                return null;
+            });
+
+            read(ic, cp[0], b -> enqueue(pending, workers.submit(() -> rekey(b)), written));
+            enqueue(pending, END, written);
+            join(written);
+        } finally {
+            workers.shutdownNow();
+            writer.shutdownNow();
+        }
+
+        if (mCheckpoint != null) {
+            Files.deleteIfExists(mCheckpoint);
+        }
+    }
+
+    private static void enqueue(BlockingQueue<Future<Batch>> pending, Future<Batch> f, Future<?> written) throws Exception {
+        while (!pending.offer(f, 100, TimeUnit.MILLISECONDS)) {
+            if (written.isDone()) {
+                join(written); // the writer failed, stop reading
+                throw new IllegalStateException("writer stopped early");
+            }
+        }
+    }
+
+    private static <T> T join(Future<T> f) throws Exception {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof Exception) {
+                throw (Exception) c;
+            }
+            throw e;
+        }
+    }
+
+    /*
+     * Maps the input window by window from start and hands out batches of
+     * whole lines. A window ends at its last newline, the next one is mapped
+     * from there.
+     */
+    private void read(FileChannel ic, long start, BatchSink sink) throws Exception {
+        long size = ic.size();
+        long pos = start;
+        List<byte[]> lines = new ArrayList<>(mBatchSize);
+
+        while (pos < size) {
+            int len = (int) Math.min(mWindow, size - pos);
+            boolean last = pos + len == size;
+            MappedByteBuffer map = ic.map(FileChannel.MapMode.READ_ONLY, pos, len);
+
+            int from = 0;
+            for (int i = 0; i < len; i++) {
+                if (map.get(i) != NL) {
+                    continue;
+                }
+                lines.add(slice(map, from, i));
+                from = i + 1;
+                if (lines.size() == mBatchSize) {
+                    sink.accept(new Batch(lines, pos + from));
+                    lines = new ArrayList<>(mBatchSize);
+                }
+            }
+
+            if (last && from < len) {
+                // no newline after the last record
+                lines.add(slice(map, from, len));
+                from = len;
+            }
+            if (from == 0) {
+                throw new IOException("line at offset " + pos + " is longer than " + mWindow + " bytes");
+            }
+            pos += from;
+        }
+
+        if (!lines.isEmpty()) {
+            sink.accept(new Batch(lines, pos));
+        }
+    }
+
+    private static byte[] slice(ByteBuffer map, int from, int to) {
+        byte[] line = new byte[to - from];
+        ByteBuffer d = map.duplicate();
+        d.position(from);
+        d.get(line);
+        return line;
+    }
+
+    private void write(BlockingQueue<Future<Batch>> pending, FileChannel oc) throws Exception {
+        Future<Batch> f;
+        while ((f = pending.take()) != END) {
+            Batch b = join(f);
+            ByteBuffer buf = ByteBuffer.wrap(b.out);
+            while (buf.hasRemaining()) {
+                oc.write(buf);
+            }
+            if (mCheckpoint != null) {
+                // the output must be on disk before the checkpoint names it
+                oc.force(false);
+                writeCheckpoint(b.end, oc.position());
+            }
+        }
+    }
+
+    private Batch rekey(Batch b) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(b.lines.size() * 256);
+        // one epoch per batch, like one per message in the processors
+        KeyEpoch epoch = mCryptor.acquireEpoch();
+
+        try {
+            for (byte[] line : b.lines) {
+                JsonNode n = isBlank(line) ? null : mMapper.readTree(line);
+                JsonNode ctx = n != null && n.isObject() ? n.get(HashCryptField.CONTEXT_FIELD) : null;
+                if (ctx == null || !ctx.isTextual()) {
+                    if (n != null && hasEnc(n, mSelector.root())) {
+                        throw new IllegalArgumentException("record has _enc values but no "
+                            + HashCryptField.CONTEXT_FIELD + ", envelope records cannot be re-keyed: " + abbrev(line));
+                    }
+                    out.write(line);
+                    out.write(NL);
+                    mCopied.increment();
+                    continue;
+                }
+
+                // ciphertext:keyid, the key id may be an arn with colons of its own
+                String c = ctx.textValue();
+                int sep = c.indexOf(':');
+                if (sep <= 0) {
+                    throw new IllegalArgumentException("malformed " + HashCryptField.CONTEXT_FIELD + ": " + c);
+                }
+
+                ObjectNode obj = (ObjectNode) n;
+                mOldKeys.apply(c.substring(0, sep), c.substring(sep + 1), old -> {
+                    rekeyNode(obj, mSelector.root(), old, epoch);
+                    return null;
+                });
+                obj.put(HashCryptField.CONTEXT_FIELD, epoch.getDecryptionContext());
+
+                out.write(mMapper.writeValueAsBytes(obj));
+                out.write(NL);
+                mRekeyed.increment();
+            }
+        } finally {
+            epoch.release();
+        }
+
+        b.out = out.toByteArray();
+        return b;
+    }
+
+    private void rekeyNode(JsonNode node, FieldSelector.Node sel, KeyEpoch old, KeyEpoch epoch) throws Exception {
+        if (node.isObject()) {
+            ObjectNode obj = (ObjectNode) node;
+            for (Map.Entry<String, FieldSelector.Node> c : sel.children.entrySet()) {
+                if (c.getValue().terminal) {
+                    String s = c.getKey() + "_enc";
+                    JsonNode e = obj.get(s);
+                    if (e == null || e.isNull()) {
+                        continue;
+                    }
+                    if (!e.isTextual()) {
+                        throw new IllegalArgumentException(s + " is not a string, raw envelope records cannot be re-keyed");
+                    }
+                    if (!e.textValue().isEmpty()) {
+                        obj.put(s, mCryptor.doEncryptUTF8(epoch, mCryptor.doDecryptUTF8(old, e.textValue())));
+                    }
+                    continue;
+                }
+                JsonNode f = obj.get(c.getKey());
+                if (f != null) {
+                    rekeyNode(f, c.getValue(), old, epoch);
+                }
+            }
+        } else if (node.isArray()) {
+            for (int i = 0; i < node.size(); i++) {
+                FieldSelector.Node el = sel.element(i);
+                if (el != null) {
+                    rekeyNode(node.get(i), el, old, epoch);
+                }
+            }
+        }
+    }
+
+    /* whether any selected _enc value under node is set */
+    private static boolean hasEnc(JsonNode node, FieldSelector.Node sel) {
+        if (node.isObject()) {
+            for (Map.Entry<String, FieldSelector.Node> c : sel.children.entrySet()) {
+                if (c.getValue().terminal) {
+                    JsonNode e = node.get(c.getKey() + "_enc");
+                    if (e != null && !e.isNull() && !(e.isTextual() && e.textValue().isEmpty())) {
+                        return true;
+                    }
+                    continue;
+                }
+                JsonNode f = node.get(c.getKey());
+                if (f != null && hasEnc(f, c.getValue())) {
+                    return true;
+                }
+            }
+        } else if (node.isArray()) {
+            for (int i = 0; i < node.size(); i++) {
+                FieldSelector.Node el = sel.element(i);
+                if (el != null && hasEnc(node.get(i), el)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String abbrev(byte[] line) {
+        String s = new String(line, 0, Math.min(line.length, 80), StandardCharsets.UTF_8);
+        return line.length > 80 ? s + "..." : s;
+    }
+
+    private static boolean isBlank(byte[] line) {
+        for (byte b : line) {
+            if (b != ' ' && b != '\t' && b != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* {input offset, output offset}, zeros without a checkpoint */
+    long[] readCheckpoint() throws IOException {
+        if (mCheckpoint == null || !Files.exists(mCheckpoint)) {
+            return new long[] { 0, 0 };
+        }
+        String[] p = new String(Files.readAllBytes(mCheckpoint), StandardCharsets.US_ASCII).trim().split(" ");
+        if (p.length != 2) {
+            throw new IOException("malformed checkpoint: " + mCheckpoint);
+        }
+        return new long[] { Long.parseLong(p[0]), Long.parseLong(p[1]) };
+    }
+
+    void writeCheckpoint(long in, long out) throws IOException {
+        // replaced in one step, a crash leaves the old or the new one
+        Path tmp = mCheckpoint.resolveSibling(mCheckpoint.getFileName() + ".tmp");
+        Files.write(tmp, (in + " " + out + "\n").getBytes(StandardCharsets.US_ASCII));
+        Files.move(tmp, mCheckpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Zeros the unwrapped keys and releases the cryptor. */
+    public void close() {
+        mOldKeys.clear();
+        mCryptor.close();
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--")) {
+                if (i + 1 == args.length) {
+                    usage("missing value for " + args[i]);
+                }
+                opts.put(args[i].substring(2), args[++i]);
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.size() != 2 || !opts.containsKey("fields")) {
+            usage(null);
+        }
+
+        DataKeyProvider keys;
+        String keyId = opts.get("key-id");
+        if (opts.containsKey("local")) {
+            keys = new LocalKeyProvider(Base64.getDecoder().decode(opts.get("local")));
+            keyId = keyId != null ? keyId : "local";
+        } else {
+            if (keyId == null) {
+                usage("--key-id is required without --local");
+            }
+            KmsConnection kms = new KmsConnection(
+                opts.getOrDefault("access-key", System.getenv("AWS_ACCESS_KEY_ID")),
+                opts.getOrDefault("secret-key", System.getenv("AWS_SECRET_ACCESS_KEY")),
+                opts.get("proxy"));
+            if (opts.containsKey("region")) {
+                kms.setRegion(opts.get("region"));
+            }
+            keys = new AWSKMSKeyProvider(kms);
+        }
+
+        int rotation = Integer.parseInt(opts.getOrDefault("rotation", "1000000"));
+        AWSKMSHashcryptor cryptor = new AWSKMSHashcryptor(keys, keyId, "SHA-256", "", rotation);
+        if (opts.containsKey("cipher-engine")) {
+            cryptor.setCipherEngine(opts.get("cipher-engine"));
+        }
+
+        Path in = Paths.get(files.get(0));
+        Path out = Paths.get(files.get(1));
+        RekeyTool tool = new RekeyTool(keys, cryptor, opts.get("fields"));
+        if (opts.containsKey("threads")) {
+            tool.setThreads(Integer.parseInt(opts.get("threads")));
+        }
+        if (opts.containsKey("batch")) {
+            tool.setBatchSize(Integer.parseInt(opts.get("batch")));
+        }
+        tool.setCheckpoint(Paths.get(opts.getOrDefault("checkpoint", out + ".checkpoint")));
+
+        try {
+            tool.run(in, out);
+        } finally {
+            tool.close();
+            keys.close();
+        }
+        System.err.printf("re-encrypted %d records, copied %d%n", tool.getRekeyed(), tool.getCopied());
+    }
+
+    private static void usage(String error) {
+        if (error != null) {
+            System.err.println(error);
+        }
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+}
@@ -0,0 +1,188 @@
+package com.github.toranova;
+
+import java.util.Map;
+
+import com.fasterxml.jackson.core.FormatSchema;
+import com.fasterxml.jackson.dataformat.avro.AvroSchema;
+import com.fasterxml.jackson.dataformat.protobuf.schema.FieldType;
+import com.fasterxml.jackson.dataformat.protobuf.schema.ProtobufField;
+import com.fasterxml.jackson.dataformat.protobuf.schema.ProtobufMessage;
+import com.fasterxml.jackson.dataformat.protobuf.schema.ProtobufSchema;
+import org.apache.avro.Schema;
+
+/*
+ * Checks an output schema against the selected fields, so a schema that
+ * cannot hold the rewritten body fails when it is configured instead of on
+ * every message. Every selected field must be a string, its _enc companion
+ * a string or bytes and aws_enc_ctx a string. Whether the companions and
+ * the context must exist depends on the mode, see the flags.
+ */
+final class SchemaCheck {
+
+    // what the _enc companions must be
+    static final int ENC_ANY = 0;
+    static final int ENC_STRING = 1;
+    static final int ENC_BYTES = 2;
+    // deterministic mode writes none
+    static final int ENC_NONE = 3;
+
+    private final int mEnc;
+    private final boolean mNeedEnc;
+    private final boolean mNeedCtx;
+
+    private SchemaCheck(int enc, boolean needEnc, boolean needCtx) {
+        mEnc = enc;
+        mNeedEnc = needEnc;
+        mNeedCtx = needCtx;
+    }
+
+    /*
+     * strict also requires the companions (unless enc is ENC_NONE) and, with
+     * needCtx, the context; otherwise only the ones present are checked.
+     */
+    static void check(FormatSchema schema, FieldSelector sel, int enc, boolean strict, boolean needCtx) {
+        SchemaCheck c = new SchemaCheck(enc, strict && enc != ENC_NONE, strict && needCtx);
+        if (schema instanceof AvroSchema) {
+            c.avro(((AvroSchema) schema).getAvroSchema(), sel.root(), "", true);
+        } else if (schema instanceof ProtobufSchema) {
+            c.proto(((ProtobufSchema) schema).getRootType(), sel.root(), "", true);
+        }
+    }
+
+    private static Schema nonNull(Schema s) {
+        if (s.getType() != Schema.Type.UNION) {
+            return s;
+        }
+        Schema found = null;
+        for (Schema b : s.getTypes()) {
+            if (b.getType() == Schema.Type.NULL) {
+                continue;
+            }
+            if (found != null) {
+                return s; // a real union, matches nothing below
+            }
+            found = b;
+        }
+        return found != null ? found : s;
+    }
+
+    private void avro(Schema s, FieldSelector.Node sel, String path, boolean root) {
+        s = nonNull(s);
+        if (!sel.children.isEmpty()) {
+            if (s.getType() != Schema.Type.RECORD) {
+                throw fail(path, "is not a record");
+            }
+            for (Map.Entry<String, FieldSelector.Node> c : sel.children.entrySet()) {
+                String p = path.isEmpty() ? c.getKey() : path + "." + c.getKey();
+                Schema.Field f = s.getField(c.getKey());
+                if (f == null) {
+                    throw fail(p, "is missing");
+                }
+                if (c.getValue().terminal) {
+                    if (nonNull(f.schema()).getType() != Schema.Type.STRING) {
+                        throw fail(p, "must be a string, it is written back as its hash");
+                    }
+                    Schema.Field e = s.getField(c.getKey() + "_enc");
+                    avroEnc(e == null ? null : nonNull(e.schema()).getType(), p + "_enc");
+                }
+                avro(f.schema(), c.getValue(), p, false);
+            }
+        }
+        if (sel.wildcard != null || !sel.indices.isEmpty()) {
+            if (s.getType() != Schema.Type.ARRAY) {
+                throw fail(path, "is not an array");
+            }
+            if (sel.wildcard != null) {
+                avro(s.getElementType(), sel.wildcard, path + "[*]", false);
+            }
+            for (Map.Entry<Integer, FieldSelector.Node> c : sel.indices.entrySet()) {
+                avro(s.getElementType(), c.getValue(), path + "[" + c.getKey() + "]", false);
+            }
+        }
+        if (root) {
+            Schema.Field ctx = s.getType() == Schema.Type.RECORD ? s.getField(HashCryptField.CONTEXT_FIELD) : null;
+            if (ctx == null ? mNeedCtx : nonNull(ctx.schema()).getType() != Schema.Type.STRING) {
+                throw fail(HashCryptField.CONTEXT_FIELD, ctx == null ? "is missing" : "must be a string");
+            }
+        }
+    }
+
+    private void avroEnc(Schema.Type t, String path) {
+        encType(t == null, t == Schema.Type.STRING, t == Schema.Type.BYTES, path);
+    }
+
+    private void proto(ProtobufMessage m, FieldSelector.Node sel, String path, boolean root) {
+        for (Map.Entry<String, FieldSelector.Node> c : sel.children.entrySet()) {
+            String p = path.isEmpty() ? c.getKey() : path + "." + c.getKey();
+            ProtobufField f = m.field(c.getKey());
+            if (f == null) {
+                throw fail(p, "is missing");
+            }
+            FieldSelector.Node n = c.getValue();
+            if (n.terminal) {
+                if (f.type != FieldType.STRING || f.repeated) {
+                    throw fail(p, "must be a single string, it is written back as its hash");
+                }
+                ProtobufField e = m.field(c.getKey() + "_enc");
+                encType(e == null, e != null && !e.repeated && e.type == FieldType.STRING,
+                    e != null && !e.repeated && e.type == FieldType.BYTES, p + "_enc");
+            }
+
+            boolean array = n.wildcard != null || !n.indices.isEmpty();
+            if (array && !f.repeated) {
+                throw fail(p, "is not repeated");
+            }
+            if (!n.children.isEmpty() && !array && f.type != FieldType.MESSAGE) {
+                throw fail(p, "is not a message");
+            }
+            if (array) {
+                if (n.wildcard != null) {
+                    protoElement(f, n.wildcard, p + "[*]");
+                }
+                for (Map.Entry<Integer, FieldSelector.Node> i : n.indices.entrySet()) {
+                    protoElement(f, i.getValue(), p + "[" + i.getKey() + "]");
+                }
+            } else if (!n.children.isEmpty()) {
+                proto(f.getMessageType(), n, p, false);
+            }
+        }
+        if (root) {
+            ProtobufField ctx = m.field(HashCryptField.CONTEXT_FIELD);
+            if (ctx == null ? mNeedCtx : ctx.type != FieldType.STRING) {
+                throw fail(HashCryptField.CONTEXT_FIELD, ctx == null ? "is missing" : "must be a string");
+            }
+        }
+    }
+
+    private void protoElement(ProtobufField f, FieldSelector.Node el, String path) {
+        if (el.hasChildren() && f.type != FieldType.MESSAGE) {
+            throw fail(path, "is not a message");
+        }
+        if (el.wildcard != null || !el.indices.isEmpty()) {
+            throw fail(path, "is a nested array, protobuf has none");
+        }
+        if (!el.children.isEmpty()) {
+            proto(f.getMessageType(), el, path, false);
+        }
+    }
+
+    private void encType(boolean missing, boolean string, boolean bytes, String path) {
+        if (mEnc == ENC_NONE) {
+            return;
+        }
+        if (missing) {
+            if (mNeedEnc) {
+                throw fail(path, "is missing");
+            }
+            return;
+        }
+        boolean ok = mEnc == ENC_STRING ? string : mEnc == ENC_BYTES ? bytes : string || bytes;
+        if (!ok) {
+            throw fail(path, mEnc == ENC_BYTES ? "must be bytes for the raw envelope" : mEnc == ENC_STRING ? "must be a string" : "must be a string or bytes");
+        }
+    }
+
+    private static IllegalArgumentException fail(String path, String why) {
+        return new IllegalArgumentException("schema field " + path + " " + why);
+    }
+}
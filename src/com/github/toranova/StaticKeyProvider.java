@@ -0,0 +1,28 @@
+package com.github.toranova;
+
+import java.util.Base64;
+
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/*
+ * Always the same key, its "ciphertext" is the key itself in base64.
+ * Backs the hard coded debug key of AWSKMSHashcryptor.
+ */
+final class StaticKeyProvider implements DataKeyProvider {
+
+    private final byte[] mKey;
+
+    StaticKeyProvider(byte[] key) {
+        mKey = key.clone();
+    }
+
+    @Override
+    public KeyEpoch generateDataKey(String keyId) {
+        return new KeyEpoch(new KeyParameter(mKey), Base64.getEncoder().encodeToString(mKey), keyId);
+    }
+
+    @Override
+    public KeyEpoch decryptDataKey(String keyCtB64, String keyId) {
+        return new KeyEpoch(new KeyParameter(Base64.getDecoder().decode(keyCtB64)), keyCtB64, keyId);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.toranova;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+public final class CipherEngineTest {
+
+    private static final String TEXT = "Sum Ting Wong, a plaintext that spans more than one aes block";
+
+    @Test
+    public void cbcEnginesShouldShareWireFormat() throws Exception {
+        AWSKMSHashcryptor bc = new AWSKMSHashcryptor(new byte[16]);
+        AWSKMSHashcryptor jca = new AWSKMSHashcryptor(new byte[16]);
+        jca.setCipherEngine(CipherEngines.JCA_CBC);
+
+        assertEquals(TEXT, jca.doDecryptUTF8(bc.doEncryptUTF8(bc.getEpoch(), TEXT)));
+        assertEquals(TEXT, bc.doDecryptUTF8(jca.doEncryptUTF8(jca.getEpoch(), TEXT)));
+        assertEquals("", bc.doDecryptUTF8(jca.doEncryptUTF8(jca.getEpoch(), "")));
+    }
+
+    @Test
+    public void gcmSivShouldRoundTripAndAuthenticate() throws Exception {
+        AWSKMSHashcryptor siv = new AWSKMSHashcryptor(new byte[16]);
+        siv.setCipherEngine(CipherEngines.BC_GCM_SIV);
+
+        String ct = siv.doEncryptUTF8(siv.getEpoch(), TEXT);
+        assertEquals(TEXT, siv.doDecryptUTF8(ct));
+        // random nonces, so two encryptions differ
+        assertNotEquals(ct, siv.doEncryptUTF8(siv.getEpoch(), TEXT));
+
+        byte[] raw = Base64.getDecoder().decode(ct);
+        raw[raw.length - 1] ^= 1;
+        try {
+            siv.doDecryptUTF8(raw);
+            fail("tampered ciphertext must not decrypt");
+        } catch (InvalidCipherTextException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void enginesShouldReportSizes() throws Exception {
+        AWSKMSHashcryptor c = new AWSKMSHashcryptor(new byte[16]);
+        byte[] pt = TEXT.getBytes(StandardCharsets.UTF_8);
+        for (String name : new String[] {CipherEngines.BC_CBC, CipherEngines.JCA_CBC, CipherEngines.BC_GCM_SIV}) {
+            CipherEngine eng = CipherEngines.forName(name);
+            byte[] out = new byte[eng.getEncryptedSize(pt.length)];
+            assertEquals(name, out.length, eng.encrypt(c.getEpoch(), pt, 0, pt.length, out, 0));
+        }
+    }
+
+    @Test
+    public void enginesShouldKeepPerThreadStateApart() throws Exception {
+        LocalKeyProvider keys = new LocalKeyProvider();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            for (String name : new String[] {CipherEngines.BC_CBC, CipherEngines.JCA_CBC, CipherEngines.BC_GCM_SIV}) {
+                // two cryptors under different data keys, used from every thread in turn
+                AWSKMSHashcryptor a = new AWSKMSHashcryptor(keys, "local", "SHA-256", "salt", 1000000);
+                AWSKMSHashcryptor b = new AWSKMSHashcryptor(keys, "local", "SHA-256", "salt", 1000000);
+                a.setCipherEngine(name);
+                b.setCipherEngine(name);
+                KeyEpoch ka = a.acquireEpoch();
+                KeyEpoch kb = b.acquireEpoch();
+
+                List<Future<?>> runs = new ArrayList<>();
+                for (int t = 0; t < 8; t++) {
+                    int thread = t;
+                    runs.add(pool.submit(() -> {
+                        for (int i = 0; i < 200; i++) {
+                            String pt = TEXT + thread + "/" + i;
+                            String ca = a.doEncryptUTF8(ka, pt);
+                            String cb = b.doEncryptUTF8(kb, pt);
+                            assertEquals(name, pt, a.doDecryptUTF8(ka, ca));
+                            assertEquals(name, pt, b.doDecryptUTF8(kb, cb));
+                            try {
+                                assertNotEquals(pt, a.doDecryptUTF8(ka, cb));
+                            } catch (InvalidCipherTextException e) {
+                                // the wrong key, expected
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> f : runs) {
+                    f.get(60, TimeUnit.SECONDS);
+                }
+                ka.release();
+                kb.release();
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
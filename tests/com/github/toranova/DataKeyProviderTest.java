@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.toranova;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.kms.KmsClient;
+import software.amazon.awssdk.services.kms.model.GenerateDataKeyRequest;
+import software.amazon.awssdk.services.kms.model.GenerateDataKeyResponse;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class DataKeyProviderTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    // counts GenerateDataKey calls, never leaves the process
+    private static final class FakeKms extends KmsConnection {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+
+        FakeKms() {
+            super(null, null, null);
+        }
+
+        @Override
+        protected KmsClient buildClient() {
+            return new KmsClient() {
+                @Override
+                public String serviceName() {
+                    return "kms";
+                }
+
+                @Override
+                public void close() {
+                    closed.incrementAndGet();
+                }
+
+                @Override
+                public GenerateDataKeyResponse generateDataKey(GenerateDataKeyRequest r) {
+                    byte[] k = new byte[16];
+                    k[0] = (byte) calls.incrementAndGet();
+                    return GenerateDataKeyResponse.builder()
+                        .plaintext(SdkBytes.fromByteArray(k))
+                        .ciphertextBlob(SdkBytes.fromByteArray(k))
+                        .build();
+                }
+            };
+        }
+    }
+
+    @Test
+    public void localKeysShouldUnwrapWithTheSameMasterOnly() {
+        LocalKeyProvider provider = new LocalKeyProvider(new byte[32]);
+        KeyEpoch k = provider.generateDataKey("local");
+        KeyEpoch u = provider.decryptDataKey(k.getKeyCiphertext(), "local");
+        assertArrayEquals(k.getKeyParameter().getKey(), u.getKeyParameter().getKey());
+        assertEquals(k.getDecryptionContext(), u.getDecryptionContext());
+
+        try {
+            new LocalKeyProvider().decryptDataKey(k.getKeyCiphertext(), "local");
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldRotateAndDecryptOffline() throws Exception {
+        DefaultCamelContext camelContext = new DefaultCamelContext();
+        LocalKeyProvider provider = new LocalKeyProvider();
+        // a period of 2 encryptions, one message each
+        HashCryptField enc = new HashCryptField("nric", provider, "local", "SHA-256", "salt123", 1);
+        DecryptField dec = new DecryptField("nric", provider);
+
+        String first = null;
+        for (int i = 0; i < 4; i++) {
+            Exchange ex = new DefaultExchange(camelContext);
+            ex.getMessage().setBody(mapper.readTree("{\"nric\":\"1234567891\"}"));
+            enc.process(ex);
+            Map<Object, Object> out = (Map<Object, Object>) ex.getMessage().getBody();
+            if (first == null) {
+                first = (String) out.get("aws_enc_ctx");
+            }
+
+            ex.getMessage().setBody(mapper.valueToTree(out));
+            dec.process(ex);
+            assertEquals("1234567891", ((Map<Object, Object>) ex.getMessage().getBody()).get("nric"));
+        }
+        assertNotEquals(first, enc.getCryptor().getDecryptionContext());
+    }
+
+    @Test
+    public void kmsProviderShouldServeRotationsFromThePool() throws Exception {
+        FakeKms kms = new FakeKms();
+        AWSKMSKeyProvider provider = new AWSKMSKeyProvider(kms, 3);
+        provider.warmUp("k");
+        assertEquals(3, provider.getReady("k"));
+        assertEquals(3, kms.calls.get());
+
+        KeyEpoch k = provider.generateDataKey("k");
+        assertEquals(16, k.getKeyParameter().getKey().length);
+        provider.warmUp("k");
+        assertEquals(3, provider.getReady("k"));
+        assertEquals(4, kms.calls.get());
+        provider.close();
+        assertEquals(0, provider.getReady("k"));
+    }
+
+    @Test
+    public void inlineFetchShouldCountTowardThePool() throws Exception {
+        FakeKms kms = new FakeKms();
+        AWSKMSKeyProvider provider = new AWSKMSKeyProvider(kms, 2);
+        provider.generateDataKey("k");
+        for (int i = 0; i < 500 && provider.getReady("k") < 1; i++) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        assertEquals(1, provider.getReady("k"));
+        assertEquals(2, kms.calls.get());
+        provider.close();
+    }
+
+    @Test
+    public void settingsShouldCloseTheClientAfterCallsInFlight() {
+        FakeKms kms = new FakeKms();
+        kms.call(c -> {
+            kms.setSocketTimeout(10);
+            // replaced, but still in use here
+            assertEquals(0, kms.closed.get());
+            return null;
+        });
+        assertEquals(1, kms.closed.get());
+
+        kms.call(c -> null);
+        kms.close();
+        assertEquals(2, kms.closed.get());
+    }
+
+    @Test
+    public void stopShouldLeaveProvidersItWasGivenOpen() throws Exception {
+        FakeKms kms = new FakeKms();
+        AWSKMSKeyProvider provider = new AWSKMSKeyProvider(kms, 3);
+        provider.warmUp("k");
+        HashCryptField enc = new HashCryptField("nric", provider, "k", "SHA-256", "salt", 5);
+        DecryptField dec = new DecryptField("nric", provider);
+        enc.stop();
+        dec.stop();
+        assertTrue(provider.getReady("k") > 0);
+        provider.close();
+        assertEquals(0, provider.getReady("k"));
+
+        // beans built by a container, never configured
+        new HashCryptField().stop();
+        new DecryptField().stop();
+    }
+
+    @Test
+    public void connectionSettingsShouldNeedKms() throws Exception {
+        HashCryptField enc = new HashCryptField("nric", new LocalKeyProvider(), "local", "SHA-256", "salt", 5);
+        DecryptField dec = new DecryptField("nric", new DataKeyCache((ct, id) -> null, 1, 1000));
+        for (Runnable r : new Runnable[] { () -> enc.setRegion("us-east-1"), () -> dec.setSocketTimeout(10) }) {
+            try {
+                r.run();
+                fail("expected IllegalStateException");
+            } catch (IllegalStateException e) {
+                assertEquals("connection settings need the kms key provider", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.toranova;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class DecryptFieldTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final AtomicInteger loads = new AtomicInteger();
+
+    // the debug key's context carries the plain key as its ciphertext
+    private KeyEpoch debugUnwrap(String keyCtB64, String keyId) {
+        loads.incrementAndGet();
+        return new KeyEpoch(new KeyParameter(Base64.getDecoder().decode(keyCtB64)), keyCtB64, keyId);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldRestoreEncryptedFields() throws Exception {
+        DefaultCamelContext camelContext = new DefaultCamelContext();
+        HashCryptField enc = new HashCryptField("nric, owner.name", new AWSKMSHashcryptor(new byte[16]));
+        DecryptField dec = new DecryptField("nric, owner.name", new DataKeyCache(this::debugUnwrap, 10, 60000));
+
+        for (int i = 0; i < 2; i++) {
+            Exchange ex = new DefaultExchange(camelContext);
+            ex.getMessage().setBody(mapper.readTree("{\"nric\":\"1234567891\",\"owner\":{\"name\":\"\"},\"age\":1}"));
+            enc.process(ex);
+            ex.getMessage().setBody(mapper.valueToTree(ex.getMessage().getBody()));
+            dec.process(ex);
+
+            Map<Object, Object> out = (Map<Object, Object>) ex.getMessage().getBody();
+            assertEquals("1234567891", out.get("nric"));
+            assertEquals("", ((Map<Object, Object>) out.get("owner")).get("name"));
+            assertEquals(1, out.get("age"));
+            assertFalse(out.containsKey("nric_enc"));
+            assertFalse(out.containsKey("aws_enc_ctx"));
+        }
+        assertEquals(1, loads.get());
+        assertEquals(1, dec.getKeyCache().getHits());
+    }
+
+    @Test
+    public void shouldCollapseConcurrentMisses() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        DataKeyCache cache = new DataKeyCache((ct, id) -> {
+            release.await();
+            return debugUnwrap(ct, id);
+        }, 10, 60000);
+        String ct = Base64.getEncoder().encodeToString(new byte[16]);
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<Integer>> res = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            res.add(pool.submit(() -> cache.apply(ct, "k", e -> e.getKeyParameter().getKey().length)));
+        }
+        Thread.sleep(100);
+        release.countDown();
+        for (Future<Integer> f : res) {
+            assertEquals(16, (int) f.get());
+        }
+        pool.shutdown();
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void shouldFailWaitersWhenTheLoaderThrowsAnError() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        DataKeyCache cache = new DataKeyCache((ct, id) -> {
+            if (loads.get() == 0) {
+                release.await();
+                loads.incrementAndGet();
+                throw new LinkageError("no kms provider");
+            }
+            return debugUnwrap(ct, id);
+        }, 10, 60000);
+        String ct = Base64.getEncoder().encodeToString(new byte[16]);
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        List<Future<Integer>> res = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            res.add(pool.submit(() -> cache.apply(ct, "k", e -> e.getKeyParameter().getKey().length)));
+            Thread.sleep(100);
+        }
+        release.countDown();
+        // the loader and the thread waiting on it both fail, neither hangs
+        for (Future<Integer> f : res) {
+            try {
+                f.get(5, TimeUnit.SECONDS);
+                fail("expected LinkageError");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof LinkageError);
+            }
+        }
+        pool.shutdown();
+
+        // the slot is gone, the next lookup loads again
+        assertEquals(16, (int) cache.apply(ct, "k", e -> e.getKeyParameter().getKey().length));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void shouldZeroEvictedKeys() throws Exception {
+        DataKeyCache cache = new DataKeyCache(this::debugUnwrap, 1, 60000);
+        byte[] k1 = new byte[16];
+        byte[] k2 = new byte[16];
+        k1[0] = 1;
+        k2[0] = 2;
+
+        KeyEpoch first = cache.apply(Base64.getEncoder().encodeToString(k1), "k", e -> e);
+        cache.apply(Base64.getEncoder().encodeToString(k2), "k", e -> e);
+
+        assertEquals(1, cache.size());
+        assertArrayEquals(new byte[16], first.getKeyParameter().getKey());
+    }
+
+    @Test
+    public void shouldSweepExpiredKeysOnLoad() throws Exception {
+        DataKeyCache cache = new DataKeyCache(this::debugUnwrap, 10, 50);
+        byte[] k1 = new byte[16];
+        byte[] k2 = new byte[16];
+        k1[0] = 1;
+        k2[0] = 2;
+
+        KeyEpoch first = cache.apply(Base64.getEncoder().encodeToString(k1), "k", e -> e);
+        Thread.sleep(100);
+        // k1 is never looked up again, the next load still drops it
+        cache.apply(Base64.getEncoder().encodeToString(k2), "k", e -> e);
+
+        assertEquals(1, cache.size());
+        assertArrayEquals(new byte[16], first.getKeyParameter().getKey());
+    }
+}
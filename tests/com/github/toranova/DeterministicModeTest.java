@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.toranova;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class DeterministicModeTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final DefaultCamelContext camelContext = new DefaultCamelContext();
+
+    @SuppressWarnings("unchecked")
+    private Map<Object, Object> run(HashCryptField p, String json) throws Exception {
+        Exchange ex = new DefaultExchange(camelContext);
+        ex.getMessage().setBody(mapper.readTree(json));
+        p.process(ex);
+        return (Map<Object, Object>) ex.getMessage().getBody();
+    }
+
+    @Test
+    public void unwrapShouldNotHoldTheCryptor() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        LocalKeyProvider keys = new LocalKeyProvider() {
+            @Override
+            public KeyEpoch decryptDataKey(String keyCtB64, String keyId) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return super.decryptDataKey(keyCtB64, keyId);
+            }
+        };
+        AWSKMSHashcryptor c = new AWSKMSHashcryptor(keys, "local", "SHA-256", "salt", 1);
+        c.setDeterministicKey(c.newDeterministicKey());
+
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> e = pool.submit(() -> c.doEncryptDeterministicUTF8("S1234567D"));
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+            // would wait for the unwrap on the cryptor's monitor
+            CompletableFuture.runAsync(() -> c.setRotationLowWaterMark(0.5)).get(5, TimeUnit.SECONDS);
+            release.countDown();
+            assertEquals("S1234567D", c.doDecryptDeterministicUTF8(e.get(5, TimeUnit.SECONDS)));
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void sameKeySameCiphertext() throws Exception {
+        LocalKeyProvider keys = new LocalKeyProvider();
+        AWSKMSHashcryptor a = new AWSKMSHashcryptor(keys, "local", "SHA-256", "salt", 1);
+        String det = a.newDeterministicKey();
+        a.setDeterministicKey(det);
+
+        // another instance, and a rotation in between, must still agree
+        AWSKMSHashcryptor b = new AWSKMSHashcryptor(keys, "local", "SHA-256", "salt", 1);
+        b.setDeterministicKey(det);
+        b.acquireEpoch();
+        b.acquireEpoch();
+
+        String e = a.doEncryptDeterministicUTF8("S1234567D");
+        assertEquals(e, a.doEncryptDeterministicUTF8("S1234567D"));
+        assertEquals(e, b.doEncryptDeterministicUTF8("S1234567D"));
+        assertNotEquals(e, a.doEncryptDeterministicUTF8("S1234567E"));
+        assertEquals("S1234567D", b.doDecryptDeterministicUTF8(e));
+
+        // another key does not open it
+        AWSKMSHashcryptor c = new AWSKMSHashcryptor(keys, "local", "SHA-256", "salt", 1);
+        c.setDeterministicKey(c.newDeterministicKey());
+        try {
+            c.doDecryptDeterministicUTF8(e);
+            fail("opened with the wrong key");
+        } catch (InvalidCipherTextException expected) {
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void writesEachFieldOnce() throws Exception {
+        LocalKeyProvider keys = new LocalKeyProvider();
+        HashCryptField enc = new HashCryptField("nric, owner.name", keys, "local", "SHA-256", "salt", 5);
+        String det = enc.getCryptor().newDeterministicKey();
+        enc.setDeterministicKey(det);
+        DecryptField dec = new DecryptField("nric, owner.name", keys);
+        dec.setDeterministicKey(det);
+
+        String in = "{\"nric\":\"1234567891\",\"nric_enc\":\"stale\",\"owner\":{\"name\":\"\"},\"age\":1,\"aws_enc_ctx\":\"old\"}";
+        Map<Object, Object> a = run(enc, in);
+        Map<Object, Object> b = run(enc, in);
+        assertEquals(a.get("nric"), b.get("nric"));
+        assertNotEquals("1234567891", a.get("nric"));
+        assertFalse(a.containsKey("nric_enc"));
+        assertFalse(a.containsKey("aws_enc_ctx"));
+        assertEquals("", ((Map<Object, Object>) a.get("owner")).get("name"));
+
+        Exchange ex = new DefaultExchange(camelContext);
+        ex.getMessage().setBody(mapper.valueToTree(a));
+        dec.process(ex);
+        Map<Object, Object> out = (Map<Object, Object>) ex.getMessage().getBody();
+        assertEquals("1234567891", out.get("nric"));
+        assertEquals(1, out.get("age"));
+    }
+
+    @Test
+    public void streamingMatchesTree() throws Exception {
+        LocalKeyProvider keys = new LocalKeyProvider();
+        HashCryptField tree = new HashCryptField("nric", keys, "local", "SHA-256", "salt", 5);
+        String det = tree.getCryptor().newDeterministicKey();
+        tree.setDeterministicKey(det);
+        HashCryptField stream = new HashCryptField("nric", keys, "local", "SHA-256", "salt", 5);
+        stream.setDeterministicKey(det);
+        stream.setStreaming(true);
+
+        String in = "{\"nric\":\"1234567891\",\"nric_enc\":\"stale\"}";
+        Exchange ex = new DefaultExchange(camelContext);
+        ex.getMessage().setBody(in.getBytes("UTF-8"));
+        stream.process(ex);
+        Map<?, ?> s = mapper.readValue((byte[]) ex.getMessage().getBody(), Map.class);
+
+        assertEquals(run(tree, in), s);
+    }
+
+    @Test
+    public void keyOutlivesItsCallers() throws Exception {
+        LocalKeyProvider keys = new LocalKeyProvider();
+        String det = new AWSKMSHashcryptor(keys, "local", "SHA-256", "salt", 1).newDeterministicKey();
+        DeterministicCipher d = DeterministicCipher.unwrap(keys, det);
+        String e = d.encryptUTF8("S1234567D");
+
+        assertTrue(d.acquire());
+        d.release(); // the holder lets go while a caller still has it
+        assertEquals(e, d.encryptUTF8("S1234567D"));
+        d.release();
+        assertFalse(d.acquire());
+    }
+
+    @Test
+    public void resetDoesNotBreakEncryptionsInFlight() throws Exception {
+        LocalKeyProvider keys = new LocalKeyProvider();
+        AWSKMSHashcryptor a = new AWSKMSHashcryptor(keys, "local", "SHA-256", "salt", 1);
+        String det = a.newDeterministicKey();
+        a.setDeterministicKey(det);
+        String e = a.doEncryptDeterministicUTF8("S1234567D");
+
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> fs = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                fs.add(pool.submit(() -> {
+                    while (!done.get()) {
+                        assertEquals(e, a.doEncryptDeterministicUTF8("S1234567D"));
+                        assertEquals("S1234567D", a.doDecryptDeterministicUTF8(e));
+                    }
+                    return null;
+                }));
+            }
+            // the same key again, every call unwraps and zeroes a cipher
+            for (int i = 0; i < 500; i++) {
+                a.setDeterministicKey(det);
+            }
+            done.set(true);
+            for (Future<?> f : fs) {
+                f.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
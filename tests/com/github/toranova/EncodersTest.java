@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.toranova;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public final class EncodersTest {
+
+    private static final String NRIC_HASH = "405d29f0dcea8f1c01e45c8cb5d431ef8308697b115f9a1d061244c27b5fdc1a";
+
+    @Test
+    public void shouldMatchJdkEncoders() {
+        Random r = new Random(7);
+        for (int len = 0; len < 40; len++) {
+            byte[] b = new byte[len];
+            r.nextBytes(b);
+            assertEquals(Base64.getEncoder().encodeToString(b), Encoders.toBase64(b, 0, len));
+
+            StringBuilder hex = new StringBuilder();
+            for (byte x : b) {
+                hex.append(String.format("%02x", x));
+            }
+            assertEquals(hex.toString(), Encoders.toHex(b));
+
+            byte[] back = new byte[Encoders.decodedBase64Length(Encoders.base64Length(len))];
+            int n = Encoders.decodeBase64(ByteBuffer.wrap(Encoders.toBase64(b, 0, len).getBytes(StandardCharsets.US_ASCII)), back, 0);
+            assertEquals(len, n);
+            assertArrayEquals(b, java.util.Arrays.copyOf(back, n));
+        }
+    }
+
+    @Test
+    public void shouldRoundTripThroughDirectBuffers() throws Exception {
+        AWSKMSHashcryptor c = new AWSKMSHashcryptor(new byte[16]);
+        byte[] pt = "Sum Ting Wong, spread over a couple of blocks".getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer in = ByteBuffer.allocateDirect(pt.length);
+        in.put(pt).flip();
+        ByteBuffer ct = ByteBuffer.allocateDirect(256);
+        int n = c.doEncrypt(c.getEpoch(), in, ct);
+        ct.flip();
+        assertEquals(n, ct.remaining());
+
+        // the text form is what doDecryptUTF8 accepts
+        byte[] text = new byte[n];
+        ct.duplicate().get(text);
+        assertEquals(new String(pt, StandardCharsets.UTF_8), c.doDecryptUTF8(new String(text, StandardCharsets.US_ASCII)));
+
+        ByteBuffer out = ByteBuffer.allocateDirect(256);
+        c.doDecrypt(c.getEpoch(), ct, out);
+        out.flip();
+        byte[] back = new byte[out.remaining()];
+        out.get(back);
+        assertArrayEquals(pt, back);
+
+        ByteBuffer raw = ByteBuffer.allocate(256);
+        c.doEncryptRaw(c.getEpoch(), ByteBuffer.wrap(pt), raw);
+        raw.flip();
+        ByteBuffer out2 = ByteBuffer.allocate(256);
+        assertEquals(pt.length, c.doDecryptRaw(c.getEpoch(), raw, out2));
+    }
+
+    @Test
+    public void shouldEncodeIntoDirectBuffer() {
+        Random r = new Random(11);
+        for (int len = 0; len < 40; len++) {
+            byte[] b = new byte[len];
+            r.nextBytes(b);
+            ByteBuffer dst = ByteBuffer.allocateDirect(3 + Encoders.base64Length(len));
+            dst.position(3);
+            assertEquals(Encoders.base64Length(len), Encoders.encodeBase64(b, 0, len, dst));
+            assertEquals(dst.capacity(), dst.position());
+
+            byte[] text = new byte[Encoders.base64Length(len)];
+            dst.position(3);
+            dst.get(text);
+            assertEquals(Base64.getEncoder().encodeToString(b), new String(text, StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    public void shouldNotConsumeInputOnOverflow() throws Exception {
+        AWSKMSHashcryptor c = new AWSKMSHashcryptor(new byte[16]);
+        ByteBuffer in = ByteBuffer.wrap("1234567891".getBytes(StandardCharsets.UTF_8));
+        try {
+            c.doEncrypt(c.getEpoch(), in, ByteBuffer.allocateDirect(8));
+            fail("expected BufferOverflowException");
+        } catch (BufferOverflowException e) {
+            assertEquals(0, in.position());
+            assertEquals(0, c.getEpoch().getUsage());
+        }
+    }
+
+    @Test
+    public void shouldNotConsumeInputOnHashOrDecryptOverflow() throws Exception {
+        AWSKMSHashcryptor c = new AWSKMSHashcryptor(new byte[16]);
+        for (int size : new int[] { 0, 16 }) {
+            c.setHashCacheSize(size);
+            ByteBuffer in = ByteBuffer.wrap("1234567891".getBytes(StandardCharsets.UTF_8));
+            try {
+                c.doHash(in, ByteBuffer.allocate(63));
+                fail("expected BufferOverflowException");
+            } catch (BufferOverflowException e) {
+                assertEquals(0, in.position());
+            }
+        }
+
+        byte[] ct = Base64.getDecoder().decode(c.doEncrypt(c.getEpoch(), "1234567891".getBytes(StandardCharsets.UTF_8)));
+        ByteBuffer raw = ByteBuffer.allocateDirect(ct.length);
+        raw.put(ct).flip();
+        byte[] text = Base64.getEncoder().encode(ct);
+        ByteBuffer b64 = ByteBuffer.allocateDirect(text.length);
+        b64.put(text).flip();
+        try {
+            c.doDecryptRaw(c.getEpoch(), raw, ByteBuffer.allocate(4));
+            fail("expected BufferOverflowException");
+        } catch (BufferOverflowException e) {
+            assertEquals(0, raw.position());
+        }
+        try {
+            c.doDecrypt(c.getEpoch(), b64, ByteBuffer.allocate(4));
+            fail("expected BufferOverflowException");
+        } catch (BufferOverflowException e) {
+            assertEquals(0, b64.position());
+        }
+
+        // and the same buffers go through once there is room
+        ByteBuffer out = ByteBuffer.allocate(16);
+        assertEquals(10, c.doDecryptRaw(c.getEpoch(), raw, out));
+        assertEquals(raw.limit(), raw.position());
+        assertEquals(10, c.doDecrypt(c.getEpoch(), b64, ByteBuffer.allocate(16)));
+        assertEquals(b64.limit(), b64.position());
+    }
+
+    @Test
+    public void shouldHashIntoBuffer() throws Exception {
+        AWSKMSHashcryptor c = new AWSKMSHashcryptor(new byte[16]);
+        ByteBuffer out = ByteBuffer.allocateDirect(64);
+        assertEquals(64, c.doHash(ByteBuffer.wrap("1234567891".getBytes(StandardCharsets.UTF_8)), out));
+        out.flip();
+        byte[] hex = new byte[64];
+        out.get(hex);
+        assertEquals(NRIC_HASH, new String(hex, StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.toranova;
+
+import java.util.Collections;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class EnvelopeTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final DefaultCamelContext camelContext = new DefaultCamelContext();
+
+    private Exchange encrypt(HashCryptField enc) throws Exception {
+        Exchange ex = new DefaultExchange(camelContext);
+        ex.getMessage().setBody(mapper.readTree("{\"nric\":\"1234567891\",\"name\":\"\"}"));
+        enc.process(ex);
+        // as a consumer would see it after a json hop
+        ex.getMessage().setBody(mapper.valueToTree(ex.getMessage().getBody()));
+        return ex;
+    }
+
+    @Test
+    public void shouldWriteVersionAndEpochId() throws Exception {
+        AWSKMSHashcryptor cryptor = new AWSKMSHashcryptor(new LocalKeyProvider(), "local", "SHA-256", "salt123", 10);
+        KeyEpoch epoch = cryptor.acquireEpoch();
+        byte[] env = cryptor.doEncryptEnvelope(epoch, "1234567891".getBytes("UTF-8"));
+
+        assertEquals(Envelope.VERSION, env[0]);
+        assertEquals(epoch.getEpochId(), Envelope.readEpochId(env, 0, env.length));
+        assertEquals(epoch.getEpochIdString(), Envelope.epochIdOf(epoch.getDecryptionContext()));
+        assertEquals("1234567891", cryptor.doDecryptEnvelopeUTF8(epoch, env));
+        assertArrayEquals(env, Envelope.fromText(Envelope.toText(env)));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldPublishContextWithEveryMessage() throws Exception {
+        LocalKeyProvider provider = new LocalKeyProvider();
+        HashCryptField enc = new HashCryptField("nric, name", provider, "local", "SHA-256", "salt123", 10);
+        enc.setEnvelope("text");
+
+        Exchange first = encrypt(enc);
+        Exchange second = encrypt(enc);
+        String epoch = enc.getCryptor().getEpoch().getEpochIdString();
+
+        assertNotNull(first.getMessage().getHeader("aws_enc_ctx"));
+        assertEquals(first.getMessage().getHeader("aws_enc_ctx"), second.getMessage().getHeader("aws_enc_ctx"));
+        assertEquals(epoch, second.getMessage().getHeader("aws_enc_epoch"));
+        assertFalse(second.getMessage().getBody(JsonNode.class).has("aws_enc_ctx"));
+
+        // a consumer that missed the first message still finds the key
+        DecryptField late = new DecryptField("nric, name", provider);
+        late.setEnvelope("text");
+        late.process(second);
+        Map<Object, Object> out = (Map<Object, Object>) second.getMessage().getBody();
+        assertEquals("1234567891", out.get("nric"));
+        assertEquals("", out.get("name"));
+    }
+
+    @Test
+    public void shouldRegisterARepeatedHeaderOnce() throws Exception {
+        LocalKeyProvider provider = new LocalKeyProvider();
+        HashCryptField enc = new HashCryptField("nric", provider, "local", "SHA-256", "salt123", 10);
+        enc.setEnvelope("text");
+
+        int[] registered = new int[1];
+        InMemoryEpochRegistry registry = new InMemoryEpochRegistry() {
+            @Override
+            public void register(String epochId, String context) {
+                registered[0]++;
+                super.register(epochId, context);
+            }
+        };
+        DecryptField dec = new DecryptField("nric", provider);
+        dec.setEnvelope("text");
+        dec.setEpochRegistry(registry);
+        for (int i = 0; i < 3; i++) {
+            dec.process(encrypt(enc));
+        }
+        assertEquals(1, registered[0]);
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void shouldPublishContextOncePerEpochWithARegistry() throws Exception {
+        LocalKeyProvider provider = new LocalKeyProvider();
+        HashCryptField enc = new HashCryptField("nric", provider, "local", "SHA-256", "salt123", 10);
+        enc.setEnvelope("text");
+        enc.setEpochRegistry(new InMemoryEpochRegistry());
+
+        assertNotNull(encrypt(enc).getMessage().getHeader("aws_enc_ctx"));
+        Exchange second = encrypt(enc);
+        assertNull(second.getMessage().getHeader("aws_enc_ctx"));
+
+        // without the registry only the first message had it
+        DecryptField late = new DecryptField("nric", provider);
+        late.setEnvelope("text");
+        try {
+            late.process(second);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains(enc.getCryptor().getEpoch().getEpochIdString()));
+        }
+    }
+
+    @Test
+    public void shouldNeedARegistryForBareBatchRecords() throws Exception {
+        HashCryptFieldBatch enc = new HashCryptFieldBatch("nric", new LocalKeyProvider(), "local", "SHA-256", "salt123", 10);
+        enc.setEnvelope("text");
+        try {
+            enc.processBatch(Collections.singletonList(Collections.singletonMap("nric", "1234567891")));
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertEquals("envelope records without a message of their own need an epoch registry", e.getMessage());
+        }
+    }
+
+    @Test
+    public void shouldForgetTheOldestEpochs() {
+        InMemoryEpochRegistry registry = new InMemoryEpochRegistry(2);
+        registry.register("a", "ctx-a");
+        registry.register("b", "ctx-b");
+        registry.register("a", "ctx-a");
+        registry.register("c", "ctx-c");
+
+        assertEquals(2, registry.size());
+        assertNull(registry.lookup("a"));
+        assertEquals("ctx-b", registry.lookup("b"));
+        assertEquals("ctx-c", registry.lookup("c"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldDecryptRawEnvelopesThroughARegistry() throws Exception {
+        LocalKeyProvider provider = new LocalKeyProvider();
+        InMemoryEpochRegistry registry = new InMemoryEpochRegistry();
+        HashCryptField enc = new HashCryptField("nric, name", provider, "local", "SHA-256", "salt123", 10);
+        enc.setEnvelope("raw");
+        enc.setEpochRegistry(registry);
+        encrypt(enc);
+
+        Exchange ex = encrypt(enc);
+        assertTrue(ex.getMessage().getBody(JsonNode.class).get("nric_enc").isBinary());
+        assertEquals(1, registry.size());
+
+        DecryptField dec = new DecryptField("nric, name", provider);
+        dec.setEnvelope("raw");
+        dec.setEpochRegistry(registry);
+        dec.process(ex);
+        assertEquals("1234567891", ((Map<Object, Object>) ex.getMessage().getBody()).get("nric"));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.toranova;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class FieldSelectorTest {
+
+    private static final String NRIC_HASH = "405d29f0dcea8f1c01e45c8cb5d431ef8308697b115f9a1d061244c27b5fdc1a";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final String nestedJson = "{" +
+                "\"nric\":\"1234567891\"," +
+                "\"owner\":{\"nric\":\"1234567891\",\"name\":\"keep\"}," +
+                "\"items\":[{\"nric\":\"1234567891\"},{\"other\":1},\"scalar\"]" +
+            "}";
+
+    @Test
+    public void shouldParsePaths() {
+        assertEquals(Arrays.asList("a", "b", "*", "c"), FieldSelector.parse("a.b[*].c"));
+        assertEquals(Arrays.asList("a", "*", "0", "c"), FieldSelector.parse("a[*][0].c"));
+        assertEquals(Arrays.asList("a.b", "c/d", "*", "e"), FieldSelector.parse("/a.b/c~1d/*/e"));
+
+        FieldSelector sel = new FieldSelector("nric, owner.nric, items[*].nric");
+        assertEquals(3, sel.size());
+        assertTrue(sel.root().children.get("nric").terminal);
+        assertTrue(sel.root().encNames.contains("nric_enc"));
+        assertFalse(sel.root().children.get("owner").terminal);
+        assertTrue(sel.root().children.get("items").wildcard.children.get("nric").terminal);
+    }
+
+    @Test
+    public void shouldMergeWildcardIntoIndex() throws Exception {
+        FieldSelector sel = new FieldSelector("items[*].a, items[0].b");
+        FieldSelector.Node items = sel.root().children.get("items");
+        assertTrue(items.element(0).children.get("a").terminal);
+        assertTrue(items.element(0).children.get("b").terminal);
+        assertTrue(items.element(1).children.get("a").terminal);
+        assertFalse(items.element(1).children.containsKey("b"));
+
+        HashCryptField p = new HashCryptField("items[*].a, items[0].b", new AWSKMSHashcryptor(new byte[16]));
+        Exchange ex = new DefaultExchange(new DefaultCamelContext());
+        ex.getMessage().setBody(mapper.readTree("{\"items\":[{\"a\":\"1\",\"b\":\"2\"},{\"a\":\"3\",\"b\":\"4\"}]}"));
+        p.process(ex);
+        JsonNode items0 = mapper.valueToTree(ex.getMessage().getBody()).get("items");
+        assertTrue(items0.get(0).has("a_enc"));
+        assertTrue(items0.get(0).has("b_enc"));
+        assertTrue(items0.get(1).has("a_enc"));
+        assertEquals("4", items0.get(1).get("b").textValue());
+    }
+
+    @Test
+    public void shouldKeepConfiguredOrder() {
+        FieldSelector sel = new FieldSelector("zeta, alpha, mid");
+        assertEquals(Arrays.asList("zeta", "alpha", "mid"), new ArrayList<>(sel.root().children.keySet()));
+    }
+
+    @Test
+    public void shouldRejectArrayLeaf() {
+        try {
+            new FieldSelector("items[*]");
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void shouldRewriteNestedFieldsInBothModes() throws Exception {
+        DefaultCamelContext camelContext = new DefaultCamelContext();
+        // three selected values, below the debug key rotation period of 5
+        AWSKMSHashcryptor cryptor = new AWSKMSHashcryptor(new byte[16]);
+
+        HashCryptField tree = new HashCryptField("owner.nric, /items/*/nric", cryptor);
+        Exchange a = new DefaultExchange(camelContext);
+        a.getMessage().setBody(mapper.readTree(nestedJson));
+        tree.process(a);
+        JsonNode ra = mapper.valueToTree(a.getMessage().getBody());
+
+        cryptor = new AWSKMSHashcryptor(new byte[16]);
+        HashCryptField stream = new HashCryptField("owner.nric, /items/*/nric", cryptor);
+        stream.setStreaming(true);
+        Exchange b = new DefaultExchange(camelContext);
+        b.getMessage().setBody(nestedJson.getBytes(StandardCharsets.UTF_8));
+        stream.process(b);
+        JsonNode rb = mapper.readTree((byte[]) b.getMessage().getBody());
+
+        for (JsonNode r : Arrays.asList(ra, rb)) {
+            // the top level nric is not selected
+            assertEquals("1234567891", r.get("nric").textValue());
+            assertEquals(NRIC_HASH, r.get("owner").get("nric").textValue());
+            assertEquals("keep", r.get("owner").get("name").textValue());
+            assertEquals(NRIC_HASH, r.get("items").get(0).get("nric").textValue());
+            assertEquals("1234567891", stream.testDecryptUTF8(r.get("items").get(0).get("nric_enc").textValue()));
+            assertEquals(1, r.get("items").get(1).get("other").intValue());
+            assertEquals("scalar", r.get("items").get(2).textValue());
+            assertFalse(r.get("owner").has("aws_enc_ctx"));
+            assertTrue(r.has("aws_enc_ctx"));
+        }
+    }
+}
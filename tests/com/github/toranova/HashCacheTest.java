@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.toranova;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public final class HashCacheTest {
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void shouldCountHitsAndMisses() {
+        HashCache cache = new HashCache(16);
+        assertNull(cache.get(utf8("a")));
+        cache.put(utf8("a"), "digest-a");
+        assertEquals("digest-a", cache.get(utf8("a")));
+        assertNull(cache.get(utf8("b")));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void shouldKeepFrequentEntries() {
+        // a single bucket of four ways
+        HashCache cache = new HashCache(4);
+        cache.put(utf8("hot"), "h");
+        for (int i = 0; i < 10; i++) {
+            cache.get(utf8("hot"));
+        }
+        for (int i = 0; i < 20; i++) {
+            cache.put(utf8("cold" + i), "c" + i);
+        }
+        assertEquals("h", cache.get(utf8("hot")));
+        assertEquals(4, cache.getCapacity());
+    }
+
+    @Test
+    public void shouldSkipLongInputsAndClear() {
+        HashCache cache = new HashCache(8, 4);
+        cache.put(utf8("too long"), "x");
+        assertNull(cache.get(utf8("too long")));
+
+        cache.put(utf8("ok"), "y");
+        cache.clear();
+        assertNull(cache.get(utf8("ok")));
+    }
+
+    @Test
+    public void shouldServeSameDigestFromCryptor() throws Exception {
+        AWSKMSHashcryptor cryptor = new AWSKMSHashcryptor(new byte[16]);
+        cryptor.setHashCacheSize(128);
+        String h1 = cryptor.doHashUTF8("1234567891");
+        String h2 = cryptor.doHashUTF8("1234567891");
+        assertEquals("405d29f0dcea8f1c01e45c8cb5d431ef8308697b115f9a1d061244c27b5fdc1a", h1);
+        assertEquals(h1, h2);
+        assertEquals(1, cryptor.getHashCache().getHits());
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.toranova;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class HashCryptFieldAsyncTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final DefaultCamelContext camelContext = new DefaultCamelContext();
+
+    // hands out the first key at once, later ones only when released
+    private static final class SlowProvider extends LocalKeyProvider {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        int calls;
+
+        @Override
+        public KeyEpoch generateDataKey(String keyId) {
+            if (calls++ > 0) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return super.generateDataKey(keyId);
+        }
+    }
+
+    private Exchange message() throws Exception {
+        Exchange ex = new DefaultExchange(camelContext);
+        ex.getMessage().setBody(mapper.readTree("{\"nric\":\"1234567891\"}"));
+        return ex;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String context(Exchange ex) {
+        return (String) ((Map<Object, Object>) ex.getMessage().getBody()).get("aws_enc_ctx");
+    }
+
+    @Test
+    public void shouldOnlyLeaveTheCallerThreadForKeyFetches() throws Exception {
+        SlowProvider provider = new SlowProvider();
+        // a period of 2 encryptions, one per message
+        HashCryptFieldAsync proc = new HashCryptFieldAsync("nric", provider, "local", "SHA-256", "salt123", 1);
+
+        assertTrue(proc.process(message(), doneSync -> { }));
+        Exchange second = message();
+        assertTrue(proc.process(second, doneSync -> { }));
+
+        // the rotation is due, the fetch goes to the pool and the route
+        // keeps flowing on the old key while it is stuck
+        Exchange third = message();
+        assertTrue(proc.process(third, doneSync -> { }));
+        assertTrue(provider.entered.await(5, TimeUnit.SECONDS));
+        Exchange fourth = message();
+        assertTrue(proc.process(fourth, doneSync -> { }));
+        assertNull(third.getException());
+        assertEquals(context(second), context(third));
+        assertEquals(context(second), context(fourth));
+
+        provider.release.countDown();
+        // later messages pick up the new key once it is there
+        String ctx = context(second);
+        for (int i = 0; i < 500 && ctx.equals(context(second)); i++) {
+            Thread.sleep(10);
+            Exchange ex = message();
+            assertTrue(proc.process(ex, doneSync -> { }));
+            ctx = context(ex);
+        }
+        assertNotEquals(context(second), ctx);
+        proc.stop();
+    }
+
+    // blocks the first fetch until released
+    private static final class GatedProvider extends LocalKeyProvider {
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public KeyEpoch generateDataKey(String keyId) {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return super.generateDataKey(keyId);
+        }
+    }
+
+    @Test
+    public void shouldParkCallbacksUntilTheFirstKey() throws Exception {
+        GatedProvider provider = new GatedProvider();
+        AWSKMSHashcryptor c = new AWSKMSHashcryptor(provider, "local", "SHA-256", "salt123", 100, true);
+        HashCryptFieldAsync proc = new HashCryptFieldAsync("nric", c);
+
+        // more messages than fetch threads, none of them holds a thread
+        int n = 16;
+        CountDownLatch done = new CountDownLatch(n);
+        Exchange[] exs = new Exchange[n];
+        for (int i = 0; i < n; i++) {
+            exs[i] = message();
+            assertFalse(proc.process(exs[i], doneSync -> done.countDown()));
+        }
+        assertEquals(n, done.getCount());
+
+        provider.release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (Exchange ex : exs) {
+            assertNull(ex.getException());
+            assertEquals(context(exs[0]), context(ex));
+        }
+        proc.stop();
+    }
+
+    @Test
+    public void shouldFailParkedCallbacksAfterTheReadyTimeout() throws Exception {
+        GatedProvider provider = new GatedProvider();
+        AWSKMSHashcryptor c = new AWSKMSHashcryptor(provider, "local", "SHA-256", "salt123", 100, true);
+        c.setReadyTimeout(100);
+        HashCryptFieldAsync proc = new HashCryptFieldAsync("nric", c);
+
+        CountDownLatch done = new CountDownLatch(1);
+        Exchange ex = message();
+        assertFalse(proc.process(ex, doneSync -> done.countDown()));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(ex.getException() instanceof IllegalStateException);
+        provider.release.countDown();
+        proc.stop();
+    }
+
+    @Test
+    public void shouldCompleteFuturesWithTheException() throws Exception {
+        HashCryptFieldAsync proc = new HashCryptFieldAsync("nric", new AWSKMSHashcryptor(new byte[16]));
+        Exchange ex = new DefaultExchange(camelContext);
+        ex.getMessage().setBody(null);
+        assertTrue(proc.processAsync(ex).get(5, TimeUnit.SECONDS).getException() != null);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.toranova;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+
+import org.junit.Test;
+import org.junit.Before;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public final class HashCryptFieldBatchTest {
+
+    private DefaultCamelContext camelContext;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private HashCryptFieldBatch processor;
+
+    @Before
+    public void setup() throws Exception {
+        camelContext = new DefaultCamelContext();
+        processor = new HashCryptFieldBatch("nric", new AWSKMSHashcryptor(new byte[16]));
+    }
+
+    @Test
+    public void shouldProcessNdjson() throws Exception {
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getMessage().setBody("{\"nric\":\"1234567891\"}\n{\"nric\":\"1234567891\",\"x\":1}\n"
+                .getBytes(StandardCharsets.UTF_8));
+        processor.process(exchange);
+
+        String[] lines = new String((byte[]) exchange.getMessage().getBody(), StandardCharsets.UTF_8).split("\n");
+        assertEquals(2, lines.length);
+
+        JsonNode a = mapper.readTree(lines[0]);
+        JsonNode b = mapper.readTree(lines[1]);
+        assertEquals("405d29f0dcea8f1c01e45c8cb5d431ef8308697b115f9a1d061244c27b5fdc1a", a.get("nric").textValue());
+        assertEquals(a.get("nric"), b.get("nric"));
+        assertEquals(a.get("aws_enc_ctx"), b.get("aws_enc_ctx"));
+        assertEquals(1, b.get("x").intValue());
+        assertEquals("1234567891", processor.testDecryptUTF8(b.get("nric_enc").textValue()));
+    }
+
+    @Test
+    public void shouldProcessAggregatedExchanges() throws Exception {
+        Exchange e1 = new DefaultExchange(camelContext);
+        e1.getMessage().setBody(mapper.readTree("{\"nric\":\"1234567891\"}"));
+        Exchange e2 = new DefaultExchange(camelContext);
+        e2.getMessage().setBody(mapper.readTree("{\"nric\":\" \"}"));
+
+        Exchange batch = new DefaultExchange(camelContext);
+        batch.getMessage().setBody(Arrays.asList(e1, e2));
+        processor.process(batch);
+
+        List<?> out = (List<?>) batch.getMessage().getBody();
+        assertEquals(2, out.size());
+
+        Map<?, ?> r1 = (Map<?, ?>) e1.getMessage().getBody();
+        Map<?, ?> r2 = (Map<?, ?>) e2.getMessage().getBody();
+        assertEquals("405d29f0dcea8f1c01e45c8cb5d431ef8308697b115f9a1d061244c27b5fdc1a", r1.get("nric"));
+        assertEquals("", r2.get("nric_enc"));
+        assertEquals(r1.get("aws_enc_ctx"), r2.get("aws_enc_ctx"));
+    }
+
+    @Test
+    public void shouldRejectBinaryFormats() {
+        for (Runnable r : new Runnable[] {
+                () -> processor.setFormat("avro"),
+                () -> processor.setSchema("{\"type\":\"string\"}"),
+                () -> processor.setInputSchema("{\"type\":\"string\"}"),
+                () -> processor.setStreaming(true) }) {
+            try {
+                r.run();
+                fail("expected IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertEquals("json", processor.getFormat());
+    }
+
+    @Test
+    public void shouldRewriteAGenericRecordAsOneRecord() throws Exception {
+        Schema schema = new Schema.Parser().parse("{\"type\":\"record\",\"name\":\"Person\",\"fields\":["
+            + "{\"name\":\"nric\",\"type\":\"string\"},"
+            + "{\"name\":\"nric_enc\",\"type\":[\"null\",\"string\"],\"default\":null},"
+            + "{\"name\":\"aws_enc_ctx\",\"type\":[\"null\",\"string\"],\"default\":null}]}");
+        GenericRecord r = new GenericData.Record(schema);
+        r.put("nric", "1234567891");
+
+        Exchange ex = new DefaultExchange(camelContext);
+        ex.getMessage().setBody(r);
+        processor.process(ex);
+        assertEquals("405d29f0dcea8f1c01e45c8cb5d431ef8308697b115f9a1d061244c27b5fdc1a", r.get("nric"));
+        assertEquals("1234567891", processor.testDecryptUTF8(r.get("nric_enc").toString()));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.toranova;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class HashCryptFieldConcurrencyTest {
+
+    private static final int THREADS = 8;
+    private static final int MESSAGES = 300;
+
+    // remembers every key it hands out
+    private static final class RecordingProvider implements DataKeyProvider {
+        final LocalKeyProvider local = new LocalKeyProvider();
+        final Queue<KeyEpoch> issued = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public KeyEpoch generateDataKey(String keyId) {
+            KeyEpoch k = local.generateDataKey(keyId);
+            issued.add(k);
+            return k;
+        }
+
+        @Override
+        public KeyEpoch decryptDataKey(String keyCtB64, String keyId) {
+            return local.decryptDataKey(keyCtB64, keyId);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void contextNamesTheKeyThatEncrypted() throws Exception {
+        RecordingProvider keys = new RecordingProvider();
+        HashCryptField proc = new HashCryptField("nric, name", keys, "local", "SHA-256", "salt", 10);
+        AWSKMSHashcryptor c = proc.getCryptor();
+        DefaultCamelContext camel = new DefaultCamelContext();
+        ObjectMapper mapper = new ObjectMapper();
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Future<List<Map<Object, Object>>>> fs = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            fs.add(pool.submit(() -> {
+                List<Map<Object, Object>> out = new ArrayList<>();
+                for (int i = 0; i < MESSAGES; i++) {
+                    Exchange ex = new DefaultExchange(camel);
+                    ex.getMessage().setBody(mapper.readTree(
+                        "{\"id\":\"" + thread + "-" + i + "\",\"nric\":\"S" + thread + "-" + i + "\",\"name\":\"n" + i + "\"}"));
+                    proc.process(ex);
+                    out.add((Map<Object, Object>) ex.getMessage().getBody());
+                }
+                return out;
+            }));
+        }
+
+        // fields encrypted per context
+        Map<String, Integer> used = new HashMap<>();
+        for (Future<List<Map<Object, Object>>> f : fs) {
+            for (Map<Object, Object> m : f.get()) {
+                String ctx = (String) m.get("aws_enc_ctx");
+                KeyEpoch k = keys.decryptDataKey(ctx.substring(0, ctx.indexOf(':')), "local");
+                String id = (String) m.get("id");
+                assertEquals("S" + id, c.doDecryptUTF8(k, (String) m.get("nric_enc")));
+                assertEquals("n" + id.substring(id.indexOf('-') + 1), c.doDecryptUTF8(k, (String) m.get("name_enc")));
+                used.merge(ctx, 2, Integer::sum);
+            }
+        }
+        pool.shutdown();
+
+        // every encryption was counted on the key that did it, and only there
+        long total = 0;
+        for (KeyEpoch k : keys.issued) {
+            assertEquals((long) used.getOrDefault(k.getDecryptionContext(), 0), k.getUsage());
+            total += k.getUsage();
+            // no rotation before the period was used up
+            if (k != c.getEpoch()) {
+                assertTrue(k.getUsage() >= c.getRotationPeriod());
+            }
+        }
+        assertEquals(THREADS * MESSAGES * 2, total);
+        assertTrue(keys.issued.size() > 1);
+        proc.stop();
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.toranova;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.dataformat.protobuf.ProtobufMapper;
+import com.fasterxml.jackson.dataformat.protobuf.schema.ProtobufSchema;
+import com.fasterxml.jackson.dataformat.protobuf.schema.ProtobufSchemaLoader;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class HashCryptFieldFormatTest {
+
+    private static final String NRIC_HASH = "405d29f0dcea8f1c01e45c8cb5d431ef8308697b115f9a1d061244c27b5fdc1a";
+
+    private static final String AVRO_SCHEMA = "{\"type\":\"record\",\"name\":\"Person\",\"fields\":[" +
+                "{\"name\":\"nric\",\"type\":\"string\"}," +
+                "{\"name\":\"nric_enc\",\"type\":[\"null\",\"string\"],\"default\":null}," +
+                "{\"name\":\"age\",\"type\":\"int\"}," +
+                "{\"name\":\"aws_enc_ctx\",\"type\":[\"null\",\"string\"],\"default\":null}" +
+            "]}";
+
+    // what the producer writes, without the fields this processor adds
+    private static final String AVRO_INPUT_SCHEMA = "{\"type\":\"record\",\"name\":\"Person\",\"fields\":[" +
+                "{\"name\":\"nric\",\"type\":\"string\"}," +
+                "{\"name\":\"age\",\"type\":\"int\"}" +
+            "]}";
+
+    private static final String PROTO_INPUT_SCHEMA = "message Person {\n" +
+                "  optional string nric = 1;\n" +
+                "  optional int32 age = 3;\n" +
+            "}\n";
+
+    private static final String PROTO_SCHEMA = "message Person {\n" +
+                "  optional string nric = 1;\n" +
+                "  optional string nric_enc = 2;\n" +
+                "  optional int32 age = 3;\n" +
+                "  optional string aws_enc_ctx = 4;\n" +
+            "}\n";
+
+    private final DefaultCamelContext camelContext = new DefaultCamelContext();
+
+    private static GenericRecord person(Schema schema) {
+        GenericRecord r = new GenericData.Record(schema);
+        r.put("nric", "1234567891");
+        r.put("age", 42);
+        return r;
+    }
+
+    @Test
+    public void shouldRewriteGenericRecordInPlace() throws Exception {
+        AWSKMSHashcryptor cryptor = new AWSKMSHashcryptor(new byte[16]);
+        HashCryptField proc = new HashCryptField("nric", cryptor);
+        GenericRecord r = person(new Schema.Parser().parse(AVRO_SCHEMA));
+
+        Exchange ex = new DefaultExchange(camelContext);
+        ex.getMessage().setBody(r);
+        proc.process(ex);
+
+        assertEquals(NRIC_HASH, r.get("nric"));
+        assertEquals("1234567891", proc.testDecryptUTF8(r.get("nric_enc").toString()));
+        assertEquals(cryptor.getDecryptionContext(), r.get("aws_enc_ctx"));
+        assertEquals(42, r.get("age"));
+    }
+
+    @Test
+    public void shouldRewriteBinaryAvro() throws Exception {
+        Schema schema = new Schema.Parser().parse(AVRO_SCHEMA);
+        ByteArrayOutputStream in = new ByteArrayOutputStream();
+        BinaryEncoder enc = EncoderFactory.get().binaryEncoder(in, null);
+        new GenericDatumWriter<GenericRecord>(schema).write(person(schema), enc);
+        enc.flush();
+
+        HashCryptField proc = new HashCryptField("nric", new AWSKMSHashcryptor(new byte[16]));
+        proc.setSchema(AVRO_SCHEMA);
+        proc.setFormat("avro");
+        Exchange ex = new DefaultExchange(camelContext);
+        ex.getMessage().setBody(in.toByteArray());
+        proc.process(ex);
+
+        GenericRecord out = new GenericDatumReader<GenericRecord>(schema)
+            .read(null, DecoderFactory.get().binaryDecoder((byte[]) ex.getMessage().getBody(), null));
+        assertEquals(NRIC_HASH, out.get("nric").toString());
+        assertEquals("1234567891", proc.testDecryptUTF8(out.get("nric_enc").toString()));
+        assertEquals(42, out.get("age"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldRewriteProtobuf() throws Exception {
+        ProtobufSchema schema = ProtobufSchemaLoader.std.parse(PROTO_SCHEMA);
+        ProtobufMapper mapper = new ProtobufMapper();
+        Map<String, Object> person = new HashMap<>();
+        person.put("nric", "1234567891");
+        person.put("age", 42);
+        byte[] in = mapper.writer(schema).writeValueAsBytes(person);
+
+        HashCryptField proc = new HashCryptField("nric", new AWSKMSHashcryptor(new byte[16]));
+        proc.setFormat("protobuf");
+        proc.setSchema(PROTO_SCHEMA);
+        Exchange ex = new DefaultExchange(camelContext);
+        ex.getMessage().setBody(in);
+        proc.process(ex);
+
+        Map<String, Object> out = mapper.readerFor(Map.class).with(schema).readValue((byte[]) ex.getMessage().getBody());
+        assertEquals(NRIC_HASH, out.get("nric"));
+        assertEquals("1234567891", proc.testDecryptUTF8((String) out.get("nric_enc")));
+        assertEquals(42, out.get("age"));
+    }
+
+    @Test
+    public void shouldReadWithTheInputSchema() throws Exception {
+        Schema in = new Schema.Parser().parse(AVRO_INPUT_SCHEMA);
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        BinaryEncoder enc = EncoderFactory.get().binaryEncoder(buf, null);
+        new GenericDatumWriter<GenericRecord>(in).write(person(in), enc);
+        enc.flush();
+
+        HashCryptField proc = new HashCryptField("nric", new AWSKMSHashcryptor(new byte[16]));
+        proc.setFormat("avro");
+        proc.setSchema(AVRO_SCHEMA);
+        proc.setInputSchema(AVRO_INPUT_SCHEMA);
+        proc.start();
+        Exchange ex = new DefaultExchange(camelContext);
+        ex.getMessage().setBody(buf.toByteArray());
+        proc.process(ex);
+
+        GenericRecord out = new GenericDatumReader<GenericRecord>(new Schema.Parser().parse(AVRO_SCHEMA))
+            .read(null, DecoderFactory.get().binaryDecoder((byte[]) ex.getMessage().getBody(), null));
+        assertEquals(NRIC_HASH, out.get("nric").toString());
+        assertEquals("1234567891", proc.testDecryptUTF8(out.get("nric_enc").toString()));
+        assertEquals(42, out.get("age"));
+        assertTrue(out.get("aws_enc_ctx") != null);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldReadProtobufWithTheInputSchema() throws Exception {
+        ProtobufMapper mapper = new ProtobufMapper();
+        Map<String, Object> person = new HashMap<>();
+        person.put("nric", "1234567891");
+        person.put("age", 42);
+        byte[] in = mapper.writer(ProtobufSchemaLoader.std.parse(PROTO_INPUT_SCHEMA)).writeValueAsBytes(person);
+
+        HashCryptField proc = new HashCryptField("nric", new AWSKMSHashcryptor(new byte[16]));
+        proc.setFormat("protobuf");
+        proc.setSchema(PROTO_SCHEMA);
+        proc.setInputSchema(PROTO_INPUT_SCHEMA);
+        Exchange ex = new DefaultExchange(camelContext);
+        ex.getMessage().setBody(in);
+        proc.process(ex);
+
+        Map<String, Object> out = mapper.readerFor(Map.class).with(ProtobufSchemaLoader.std.parse(PROTO_SCHEMA))
+            .readValue((byte[]) ex.getMessage().getBody());
+        assertEquals(NRIC_HASH, out.get("nric"));
+        assertEquals("1234567891", proc.testDecryptUTF8((String) out.get("nric_enc")));
+        assertEquals(42, out.get("age"));
+    }
+
+    @Test
+    public void shouldRejectSchemasThatCannotHoldTheOutput() throws Exception {
+        HashCryptField avro = new HashCryptField("age", new AWSKMSHashcryptor(new byte[16]));
+        avro.setFormat("avro");
+        try {
+            avro.setSchema(AVRO_SCHEMA);
+            fail("int field accepted");
+        } catch (IllegalArgumentException e) {
+            assertEquals("schema field age must be a string, it is written back as its hash", e.getMessage());
+        }
+
+        HashCryptField proto = new HashCryptField("age", new AWSKMSHashcryptor(new byte[16]));
+        proto.setFormat("protobuf");
+        try {
+            proto.setSchema(PROTO_SCHEMA);
+            fail("int32 field accepted");
+        } catch (IllegalArgumentException e) {
+            assertEquals("schema field age must be a single string, it is written back as its hash", e.getMessage());
+        }
+
+        // the input schema is fine for configuring, not for writing
+        HashCryptField missing = new HashCryptField("nric", new AWSKMSHashcryptor(new byte[16]));
+        missing.setFormat("avro");
+        missing.setSchema(AVRO_INPUT_SCHEMA);
+        try {
+            missing.start();
+            fail("schema without nric_enc accepted");
+        } catch (IllegalArgumentException e) {
+            assertEquals("schema field nric_enc is missing", e.getMessage());
+        }
+        missing.setEnvelope("text");
+        missing.setDeterministicKey("AAAAAAAAAAAAAAAAAAAAAA==:k");
+        missing.start();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldKeepJsonBodiesOnTheTreePath() throws Exception {
+        HashCryptField proc = new HashCryptField("nric", new AWSKMSHashcryptor(new byte[16]));
+        proc.setFormat("avro");
+        proc.setSchema(AVRO_SCHEMA);
+        Exchange ex = new DefaultExchange(camelContext);
+        ex.getMessage().setBody(new ObjectMapper().readTree("{\"nric\":\"1234567891\",\"age\":42}"));
+        proc.process(ex);
+
+        Map<Object, Object> out = (Map<Object, Object>) ex.getMessage().getBody();
+        assertEquals(NRIC_HASH, out.get("nric"));
+        assertEquals(42, out.get("age"));
+    }
+}
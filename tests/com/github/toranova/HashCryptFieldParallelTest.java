@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.toranova;
+
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public final class HashCryptFieldParallelTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final DefaultCamelContext camelContext = new DefaultCamelContext();
+
+    // {"items":[{"name":"n0","tags":[{"v":"t0"},...]},...]}
+    private ObjectNode envelope(int items, int tags) {
+        ObjectNode root = mapper.createObjectNode();
+        ArrayNode arr = root.putArray("items");
+        for (int i = 0; i < items; i++) {
+            ObjectNode it = arr.addObject();
+            it.put("name", "n" + i);
+            ArrayNode t = it.putArray("tags");
+            for (int j = 0; j < tags; j++) {
+                t.addObject().put("v", "t" + i + "." + j);
+            }
+        }
+        return root;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<Object, Object> run(HashCryptField p, ObjectNode body) throws Exception {
+        Exchange ex = new DefaultExchange(camelContext);
+        ex.getMessage().setBody(body);
+        p.process(ex);
+        return (Map<Object, Object>) ex.getMessage().getBody();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void matchesSerial() throws Exception {
+        String fields = "items[*].name, items[*].tags[*].v";
+        HashCryptField serial = new HashCryptField(fields, new AWSKMSHashcryptor(new byte[16]));
+        HashCryptField parallel = new HashCryptField(fields, new AWSKMSHashcryptor(new byte[16]));
+        parallel.setParallelThreshold(64);
+        parallel.setParallelism(4);
+
+        try {
+            List<Map<Object, Object>> a = (List<Map<Object, Object>>) run(serial, envelope(1000, 100)).get("items");
+            List<Map<Object, Object>> b = (List<Map<Object, Object>>) run(parallel, envelope(1000, 100)).get("items");
+            assertEquals(1000, b.size());
+            for (int i = 0; i < a.size(); i++) {
+                assertEquals(a.get(i).get("name"), b.get(i).get("name"));
+                assertEquals("n" + i, parallel.testDecryptUTF8((String) b.get(i).get("name_enc")));
+
+                List<Map<Object, Object>> ta = (List<Map<Object, Object>>) a.get(i).get("tags");
+                List<Map<Object, Object>> tb = (List<Map<Object, Object>>) b.get(i).get("tags");
+                for (int j = 0; j < ta.size(); j++) {
+                    assertEquals(ta.get(j).get("v"), tb.get(j).get("v"));
+                    assertEquals("t" + i + "." + j, parallel.testDecryptUTF8((String) tb.get(j).get("v_enc")));
+                }
+            }
+        } finally {
+            parallel.stop();
+        }
+    }
+
+    @Test
+    public void propagatesFailures() throws Exception {
+        HashCryptField p = new HashCryptField("items[*].name", new AWSKMSHashcryptor(new byte[16]));
+        p.setParallelThreshold(8);
+        p.setDeterministicKey("no separator");
+        try {
+            run(p, envelope(100, 0));
+            fail("bad key was used");
+        } catch (IllegalArgumentException e) {
+            assertEquals("malformed deterministic key, expected ciphertext:keyid", e.getMessage());
+        } finally {
+            p.stop();
+        }
+    }
+}
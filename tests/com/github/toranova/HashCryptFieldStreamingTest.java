@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.toranova;
+
+import java.nio.charset.StandardCharsets;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+
+import org.junit.Test;
+import org.junit.Before;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class HashCryptFieldStreamingTest {
+
+    private DefaultCamelContext camelContext;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private AWSKMSHashcryptor cryptor;
+
+    private final String baseJson = "{" +
+                "\"name\":\"Sum Ting Wong\"," +
+                "\"nric\":\"1234567891 \"," +
+                "\"empty\":\"  \"," +
+                "\"nested\":{\"nric\":\"untouched\",\"list\":[1,2,{\"a\":null}]}," +
+                "\"aws_enc_ctx\":\"stale\"," +
+                "\"count\":42" +
+            "}";
+
+    @Before
+    public void setup() throws Exception {
+        camelContext = new DefaultCamelContext();
+        // offline, the debug key never talks to kms
+        cryptor = new AWSKMSHashcryptor(new byte[16]);
+    }
+
+    @Test
+    public void shouldRewriteRawBytes() throws Exception {
+        HashCryptField processor = new HashCryptField("name, nric, empty, donexist", cryptor);
+        processor.setStreaming(true);
+
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getMessage().setBody(baseJson.getBytes(StandardCharsets.UTF_8));
+        processor.process(exchange);
+
+        JsonNode res = mapper.readTree((byte[]) exchange.getMessage().getBody());
+        assertEquals("405d29f0dcea8f1c01e45c8cb5d431ef8308697b115f9a1d061244c27b5fdc1a", res.get("nric").textValue());
+        assertEquals("24a5827a551ee3ef32daaa6cb806209204d552fed00f5ee27ea40110ee272a1b", res.get("name").textValue());
+        assertEquals("1234567891", processor.testDecryptUTF8(res.get("nric_enc").textValue()));
+        assertEquals("Sum Ting Wong", processor.testDecryptUTF8(res.get("name_enc").textValue()));
+
+        assertEquals("", res.get("empty").textValue());
+        assertEquals("", res.get("empty_enc").textValue());
+        assertFalse(res.has("donexist"));
+
+        // untouched fields are copied through as they were
+        assertEquals(mapper.readTree(baseJson).get("nested"), res.get("nested"));
+        assertEquals(42, res.get("count").intValue());
+        assertEquals(cryptor.getDecryptionContext(), res.get("aws_enc_ctx").textValue());
+    }
+
+    @Test
+    public void shouldMatchTreeMode() throws Exception {
+        HashCryptField tree = new HashCryptField("name, nric", cryptor);
+        HashCryptField stream = new HashCryptField("name, nric", cryptor);
+        stream.setStreaming(true);
+
+        Exchange a = new DefaultExchange(camelContext);
+        a.getMessage().setBody(mapper.readTree(baseJson));
+        tree.process(a);
+        JsonNode ta = mapper.valueToTree(a.getMessage().getBody());
+
+        Exchange b = new DefaultExchange(camelContext);
+        b.getMessage().setBody(baseJson.getBytes(StandardCharsets.UTF_8));
+        stream.process(b);
+        JsonNode tb = mapper.readTree((byte[]) b.getMessage().getBody());
+
+        assertEquals(ta.size(), tb.size());
+        assertEquals(ta.get("nric"), tb.get("nric"));
+        assertEquals(ta.get("name"), tb.get("name"));
+        assertTrue(tb.has("nric_enc"));
+    }
+}
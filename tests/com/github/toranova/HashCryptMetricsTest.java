@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.toranova;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public final class HashCryptMetricsTest {
+
+    private static final class Counting implements HashCryptMetrics {
+        final AtomicInteger encrypts = new AtomicInteger();
+        final AtomicInteger hashes = new AtomicInteger();
+        final AtomicInteger messages = new AtomicInteger();
+        Supplier<KeyEpoch> epoch;
+
+        @Override
+        public void recordEncrypt(long nanos, int bytes) {
+            encrypts.incrementAndGet();
+        }
+
+        @Override
+        public void recordHash(long nanos, int bytes) {
+            hashes.incrementAndGet();
+        }
+
+        @Override
+        public void recordMessage(long nanos, boolean success) {
+            messages.incrementAndGet();
+        }
+
+        @Override
+        public void bindEpoch(Supplier<KeyEpoch> current) {
+            epoch = current;
+        }
+    }
+
+    @Test
+    public void shouldDefaultToNoop() throws Exception {
+        AWSKMSHashcryptor cryptor = new AWSKMSHashcryptor(new byte[16]);
+        assertSame(HashCryptMetrics.NOOP, cryptor.getMetrics());
+        cryptor.setMetrics(null);
+        assertSame(HashCryptMetrics.NOOP, cryptor.getMetrics());
+    }
+
+    @Test
+    public void shouldRecordFieldsAndMessages() throws Exception {
+        AWSKMSHashcryptor cryptor = new AWSKMSHashcryptor(new byte[16]);
+        HashCryptField proc = new HashCryptField("nric, name", cryptor);
+        Counting metrics = new Counting();
+        proc.setMetrics(metrics);
+
+        Exchange ex = new DefaultExchange(new DefaultCamelContext());
+        ex.getMessage().setBody(new ObjectMapper().readTree("{\"nric\":\"1234567891\",\"name\":\"a\",\"age\":1}"));
+        proc.process(ex);
+
+        assertEquals(2, metrics.encrypts.get());
+        assertEquals(2, metrics.hashes.get());
+        assertEquals(1, metrics.messages.get());
+        assertSame(cryptor.getEpoch(), metrics.epoch.get());
+        assertEquals(2, metrics.epoch.get().getUsage());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.toranova;
+
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.apache.ProxyConfiguration;
+import software.amazon.awssdk.services.kms.KmsClient;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class KmsConnectionTest {
+
+    // records the last argument of every builder call
+    private static Map<String, Object> configure(KmsConnection kms) {
+        Map<String, Object> calls = new HashMap<>();
+        ApacheHttpClient.Builder http = (ApacheHttpClient.Builder) Proxy.newProxyInstance(
+            ApacheHttpClient.Builder.class.getClassLoader(),
+            new Class<?>[] { ApacheHttpClient.Builder.class },
+            (proxy, method, args) -> {
+                calls.put(method.getName(), args == null ? null : args[0]);
+                return proxy;
+            });
+        kms.configure(http);
+        return calls;
+    }
+
+    // hands out clients that count how often they were closed
+    private static final class CountingKms extends KmsConnection {
+        final AtomicInteger built = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+
+        CountingKms() {
+            super(null, null, null);
+        }
+
+        @Override
+        protected KmsClient buildClient() {
+            built.incrementAndGet();
+            return new KmsClient() {
+                @Override
+                public String serviceName() {
+                    return "kms";
+                }
+
+                @Override
+                public void close() {
+                    closed.incrementAndGet();
+                }
+            };
+        }
+    }
+
+    @Test
+    public void settingsShouldReachTheHttpClient() {
+        KmsConnection kms = new KmsConnection(null, null, null);
+        kms.setMaxConnections(16);
+        kms.setConnectionTimeout(100);
+        kms.setSocketTimeout(200);
+        kms.setConnectionAcquisitionTimeout(300);
+
+        Map<String, Object> calls = configure(kms);
+        assertEquals(16, calls.get("maxConnections"));
+        assertEquals(Duration.ofMillis(100), calls.get("connectionTimeout"));
+        assertEquals(Duration.ofMillis(200), calls.get("socketTimeout"));
+        assertEquals(Duration.ofMillis(300), calls.get("connectionAcquisitionTimeout"));
+        assertEquals(Boolean.TRUE, calls.get("tcpKeepAlive"));
+        assertFalse(calls.containsKey("proxyConfiguration"));
+    }
+
+    @Test
+    public void proxyShouldReachTheHttpClient() {
+        Map<String, Object> calls = configure(new KmsConnection(null, null, "http://proxy.local:3128"));
+        ProxyConfiguration proxy = (ProxyConfiguration) calls.get("proxyConfiguration");
+        assertEquals("proxy.local", proxy.host());
+        assertEquals(3128, proxy.port());
+    }
+
+    @Test
+    public void closeShouldReleaseTheClient() {
+        CountingKms kms = new CountingKms();
+        KmsClient first = kms.call(c -> c);
+        kms.call(c -> c);
+        assertEquals(1, kms.built.get());
+
+        kms.close();
+        assertEquals(1, kms.closed.get());
+        // built again on demand
+        assertTrue(first != kms.call(c -> c));
+        assertEquals(2, kms.built.get());
+        kms.close();
+        kms.close();
+        assertEquals(2, kms.closed.get());
+    }
+}
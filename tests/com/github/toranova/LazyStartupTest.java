@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.toranova;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class LazyStartupTest {
+
+    // fails the first calls, like kms before the network is up
+    private static final class FlakyProvider implements DataKeyProvider {
+        final LocalKeyProvider local = new LocalKeyProvider();
+        final AtomicInteger failures;
+        final AtomicInteger calls = new AtomicInteger();
+        // the direct fetches among calls
+        final AtomicInteger fetches = new AtomicInteger();
+
+        FlakyProvider(int failures) {
+            this.failures = new AtomicInteger(failures);
+        }
+
+        @Override
+        public KeyEpoch generateDataKey(String keyId) {
+            calls.incrementAndGet();
+            if (failures.getAndDecrement() > 0) {
+                throw new IllegalStateException("kms unreachable");
+            }
+            return local.generateDataKey(keyId);
+        }
+
+        @Override
+        public KeyEpoch fetchDataKey(String keyId) {
+            fetches.incrementAndGet();
+            return generateDataKey(keyId);
+        }
+
+        @Override
+        public KeyEpoch decryptDataKey(String keyCtB64, String keyId) {
+            return local.decryptDataKey(keyCtB64, keyId);
+        }
+    }
+
+    @Test
+    public void constructorDoesNotFetch() throws Exception {
+        FlakyProvider p = new FlakyProvider(Integer.MAX_VALUE);
+        AWSKMSHashcryptor c = new AWSKMSHashcryptor(p, "local", "SHA-256", "salt", 10, true);
+        try {
+            assertFalse(c.isReady());
+            assertNull(c.getDecryptionContext());
+            assertTrue(c.needsKeyFetch());
+            assertFalse(c.awaitReady(50, TimeUnit.MILLISECONDS));
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void retriesUntilReady() throws Exception {
+        FlakyProvider p = new FlakyProvider(2);
+        AWSKMSHashcryptor c = new AWSKMSHashcryptor(p, "local", "SHA-256", "salt", 10, true);
+        try {
+            // 250ms then 500ms of backoff, plus jitter
+            assertTrue(c.awaitReady(10, TimeUnit.SECONDS));
+            assertTrue(c.isReady());
+            assertEquals(3, p.calls.get());
+            // only the first try goes through generateDataKey and its pool refills
+            assertEquals(2, p.fetches.get());
+            assertNotNull(c.getDecryptionContext());
+            assertEquals("secret", c.doDecryptUTF8(c.doEncryptUTF8("secret")));
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void acquireWaitsForTheFirstKey() throws Exception {
+        FlakyProvider p = new FlakyProvider(1);
+        AWSKMSHashcryptor c = new AWSKMSHashcryptor(p, "local", "SHA-256", "salt", 10, true);
+        try {
+            assertNotNull(c.acquireEpoch());
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void acquireTimesOut() throws Exception {
+        FlakyProvider p = new FlakyProvider(Integer.MAX_VALUE);
+        AWSKMSHashcryptor c = new AWSKMSHashcryptor(p, "local", "SHA-256", "salt", 10, true);
+        c.setReadyTimeout(100);
+        try {
+            c.acquireEpoch();
+            fail("no key to acquire");
+        } catch (IllegalStateException e) {
+            assertEquals("kms unreachable", e.getCause().getMessage());
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void startWaitsForTheFirstKey() throws Exception {
+        FlakyProvider p = new FlakyProvider(1);
+        HashCryptField f = new HashCryptField("name", p, "local", "SHA-256", "salt", 10, true);
+        f.start();
+        assertTrue(f.isReady());
+
+        Map<String, Object> body = new HashMap<>();
+        body.put("name", "alice");
+        Exchange ex = new DefaultExchange(new DefaultCamelContext());
+        ex.getIn().setBody(body);
+        f.process(ex);
+        assertNotNull(ex.getIn().getBody(Map.class).get("name_enc"));
+        f.stop();
+    }
+
+    @Test
+    public void startTimesOut() throws Exception {
+        FlakyProvider p = new FlakyProvider(Integer.MAX_VALUE);
+        HashCryptField f = new HashCryptField("name", p, "local", "SHA-256", "salt", 10, true);
+        f.setStartupTimeout(100);
+        try {
+            f.start();
+            fail("started without a key");
+        } catch (IllegalStateException e) {
+            assertFalse(f.isReady());
+        } finally {
+            f.stop();
+        }
+    }
+
+    @Test
+    public void negativeStartupTimeoutDoesNotWait() throws Exception {
+        FlakyProvider p = new FlakyProvider(Integer.MAX_VALUE);
+        HashCryptField f = new HashCryptField("name", p, "local", "SHA-256", "salt", 10, true);
+        f.setStartupTimeout(-1);
+        try {
+            f.start();
+            assertFalse(f.isReady());
+        } finally {
+            f.stop();
+        }
+    }
+
+    @Test
+    public void defaultCredentialsCanStartLazily() throws Exception {
+        HashCryptField f = new HashCryptField("name", "alias/none", "SHA-256", "salt", 10, true);
+        try {
+            assertFalse(f.isReady());
+            assertNull(f.getCryptor().getDecryptionContext());
+        } finally {
+            f.stop();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.toranova;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class RekeyToolTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final byte[] master = new byte[32];
+
+    // n records under "old", a blank line and an unencrypted record after every 10th
+    private Path archive(int n) throws Exception {
+        AWSKMSHashcryptor old = new AWSKMSHashcryptor(new LocalKeyProvider(master), "old", "SHA-256", "salt", 7);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            KeyEpoch e = old.acquireEpoch();
+            ObjectNode r = mapper.createObjectNode();
+            r.put("id", i);
+            r.put("nric", old.doHashUTF8("S" + i));
+            r.put("nric_enc", old.doEncryptUTF8(e, "S" + i));
+            r.putObject("owner").put("name", "").put("name_enc", "");
+            r.put("aws_enc_ctx", e.getDecryptionContext());
+            sb.append(mapper.writeValueAsString(r)).append('\n');
+            if (i % 10 == 9) {
+                sb.append('\n').append("{\"id\":-1}\n");
+            }
+        }
+        old.close();
+        Path in = Files.createTempFile("rekey", ".ndjson");
+        Files.write(in, sb.toString().getBytes(StandardCharsets.UTF_8));
+        return in;
+    }
+
+    private RekeyTool tool() throws Exception {
+        LocalKeyProvider keys = new LocalKeyProvider(master);
+        RekeyTool t = new RekeyTool(keys, new AWSKMSHashcryptor(keys, "new", "SHA-256", "", 50), "nric, owner.name");
+        t.setThreads(3);
+        t.setBatchSize(16);
+        t.setWindow(4096); // several windows, records cross their ends
+        return t;
+    }
+
+    private void verify(Path in, Path out) throws Exception {
+        List<String> a = Files.readAllLines(in);
+        List<String> b = Files.readAllLines(out);
+        assertEquals(a.size(), b.size());
+
+        AWSKMSHashcryptor dec = new AWSKMSHashcryptor(new LocalKeyProvider(master), "x", "SHA-256", "salt", 1);
+        LocalKeyProvider keys = new LocalKeyProvider(master);
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i).isEmpty() || !a.get(i).contains("aws_enc_ctx")) {
+                assertEquals(a.get(i), b.get(i));
+                continue;
+            }
+            JsonNode x = mapper.readTree(a.get(i));
+            JsonNode y = mapper.readTree(b.get(i));
+            assertEquals(x.get("id"), y.get("id"));
+            assertEquals(x.get("nric"), y.get("nric"));
+            assertEquals("", y.get("owner").get("name_enc").asText());
+
+            String ctx = y.get("aws_enc_ctx").asText();
+            assertNotEquals(x.get("aws_enc_ctx").asText(), ctx);
+            assertEquals("new", ctx.substring(ctx.indexOf(':') + 1));
+            KeyEpoch k = keys.decryptDataKey(ctx.substring(0, ctx.indexOf(':')), "new");
+            assertEquals("S" + x.get("id").asInt(), dec.doDecryptUTF8(k, y.get("nric_enc").asText()));
+        }
+    }
+
+    @Test
+    public void rekeysEveryRecord() throws Exception {
+        Path in = archive(500);
+        Path out = Files.createTempFile("rekey", ".out");
+        RekeyTool t = tool();
+        t.run(in, out);
+        t.close();
+
+        assertEquals(500, t.getRekeyed());
+        assertEquals(100, t.getCopied());
+        verify(in, out);
+    }
+
+    @Test
+    public void resumesFromCheckpoint() throws Exception {
+        Path in = archive(300);
+        Path out = Files.createTempFile("rekey", ".out");
+        Path cp = Files.createTempFile("rekey", ".checkpoint");
+        Files.delete(cp);
+
+        // a first run that died after 100 lines, with half a batch written after its checkpoint
+        List<String> lines = Files.readAllLines(in);
+        long inOff = 0;
+        for (int i = 0; i < 100; i++) {
+            inOff += lines.get(i).getBytes(StandardCharsets.UTF_8).length + 1;
+        }
+        Path head = Files.createTempFile("rekey", ".head");
+        Files.write(head, String.join("\n", lines.subList(0, 100)).concat("\n").getBytes(StandardCharsets.UTF_8));
+        RekeyTool first = tool();
+        first.run(head, out);
+        first.close();
+        byte[] done = Files.readAllBytes(out);
+        Files.write(out, "{\"torn\":".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        RekeyTool t = tool();
+        t.setCheckpoint(cp);
+        t.writeCheckpoint(inOff, done.length);
+        t.run(in, out);
+        t.close();
+
+        assertFalse(Files.exists(cp));
+        byte[] all = Files.readAllBytes(out);
+        byte[] prefix = new byte[done.length];
+        System.arraycopy(all, 0, prefix, 0, done.length);
+        assertArrayEquals(done, prefix);
+        assertEquals(lines.size() - 100, t.getRekeyed() + t.getCopied());
+        verify(in, out);
+    }
+
+    @Test
+    public void refusesToOverwriteItsInput() throws Exception {
+        Path in = archive(20);
+        byte[] before = Files.readAllBytes(in);
+        RekeyTool t = tool();
+        try {
+            t.run(in, in.getParent().resolve(".").resolve(in.getFileName()));
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("input and output are the same file"));
+        } finally {
+            t.close();
+        }
+        assertArrayEquals(before, Files.readAllBytes(in));
+    }
+
+    @Test
+    public void failsOnEnvelopeRecords() throws Exception {
+        Path in = archive(20);
+        Files.write(in, "{\"id\":-2,\"nric\":\"h\",\"nric_enc\":\"AQAAAAAAAAA\"}\n".getBytes(StandardCharsets.UTF_8),
+            StandardOpenOption.APPEND);
+        Path out = Files.createTempFile("rekey", ".out");
+        RekeyTool t = tool();
+        try {
+            t.run(in, out);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("record has _enc values but no aws_enc_ctx"));
+        } finally {
+            t.close();
+        }
+    }
+}
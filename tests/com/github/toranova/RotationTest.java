@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.toranova;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public final class RotationTest {
+
+    // a provider whose fetches after the first can be held back or failed
+    private static final class SlowProvider implements DataKeyProvider {
+        final LocalKeyProvider local = new LocalKeyProvider();
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        volatile CountDownLatch gate = null;
+
+        @Override
+        public KeyEpoch generateDataKey(String keyId) {
+            if (calls.incrementAndGet() > 1) {
+                CountDownLatch g = gate;
+                if (g != null) {
+                    try {
+                        g.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException(e);
+                    }
+                }
+                if (failures.getAndDecrement() > 0) {
+                    throw new IllegalStateException("kms unreachable");
+                }
+            }
+            return local.generateDataKey(keyId);
+        }
+
+        @Override
+        public KeyEpoch decryptDataKey(String keyCtB64, String keyId) {
+            return local.decryptDataKey(keyCtB64, keyId);
+        }
+    }
+
+    private static AWSKMSHashcryptor cryptor(SlowProvider p) throws Exception {
+        AWSKMSHashcryptor c = new AWSKMSHashcryptor(p, "local", "SHA-256", "salt", 10);
+        c.setRotationLowWaterMark(0.5);
+        return c;
+    }
+
+    // encrypts until the current epoch has been used n times or was replaced, returns the current one
+    private static KeyEpoch use(AWSKMSHashcryptor c, int n) throws Exception {
+        KeyEpoch e = c.acquireEpoch();
+        while (e.getUsage() < n) {
+            c.doEncryptUTF8(e, "secret");
+            KeyEpoch next = c.acquireEpoch();
+            if (next != e) {
+                return next;
+            }
+        }
+        return e;
+    }
+
+    private static KeyEpoch awaitRotation(AWSKMSHashcryptor c, KeyEpoch from) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        KeyEpoch e;
+        while ((e = c.acquireEpoch()) == from && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        return e;
+    }
+
+    @Test
+    public void swapsInThePrefetchedKey() throws Exception {
+        SlowProvider p = new SlowProvider();
+        AWSKMSHashcryptor c = cryptor(p);
+        try {
+            KeyEpoch first = use(c, 5);
+            String ct = c.doEncryptUTF8(first, "secret");
+
+            use(c, 10);
+            KeyEpoch next = awaitRotation(c, first);
+            assertNotEquals(first, next);
+            assertEquals(2, p.calls.get());
+            // the old key still decrypts what it encrypted
+            assertEquals("secret", c.doDecryptUTF8(first, ct));
+            assertEquals("secret", c.doDecryptUTF8(next, c.doEncryptUTF8(next, "secret")));
+        } finally {
+            c.close();
+        }
+    }
+
+    private static boolean wiped(KeyEpoch e) {
+        for (byte b : e.getKeyParameter().getKey()) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Test
+    public void wipesARetiredKeyAfterItsLastUser() throws Exception {
+        // inline rotation, a period of 2
+        AWSKMSHashcryptor c = new AWSKMSHashcryptor(new LocalKeyProvider(), "local", "SHA-256", "salt", 2);
+        KeyEpoch held = c.acquireEpoch();
+        String ct = c.doEncryptUTF8(held, "secret");
+        c.doEncryptUTF8(held, "secret");
+
+        KeyEpoch next = c.acquireEpoch();
+        assertNotEquals(held, next);
+        // retired, but still in use here
+        assertFalse(wiped(held));
+        assertEquals("secret", c.doDecryptUTF8(held, ct));
+        held.release();
+        assertTrue(wiped(held));
+
+        // the current one stays as long as the cryptor holds it
+        next.release();
+        assertFalse(wiped(next));
+        c.close();
+    }
+
+    @Test
+    public void neverWaitsOnTheProvider() throws Exception {
+        SlowProvider p = new SlowProvider();
+        p.gate = new CountDownLatch(1);
+        AWSKMSHashcryptor c = cryptor(p);
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            KeyEpoch first = c.acquireEpoch();
+            // past the mark and past the period while the fetch hangs
+            Future<KeyEpoch> f = caller.submit(() -> use(c, 25));
+            assertSame(first, f.get(5, TimeUnit.SECONDS));
+            assertTrue(first.getUsage() >= 25);
+
+            p.gate.countDown();
+            assertNotEquals(first, awaitRotation(c, first));
+        } finally {
+            p.gate.countDown();
+            caller.shutdownNow();
+            c.close();
+        }
+    }
+
+    @Test
+    public void keepsTheKeyWhenTheFetchFails() throws Exception {
+        SlowProvider p = new SlowProvider();
+        p.failures.set(1);
+        AWSKMSHashcryptor c = cryptor(p);
+        try {
+            KeyEpoch first = use(c, 5);
+            // the failed fetch leaves the current key in use past its period
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (p.failures.get() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertSame(first, use(c, 15));
+
+            // retried a second later, then swapped in
+            KeyEpoch next = awaitRotation(c, first);
+            assertNotEquals(first, next);
+            assertTrue(p.calls.get() >= 3);
+        } finally {
+            c.close();
+        }
+    }
+}